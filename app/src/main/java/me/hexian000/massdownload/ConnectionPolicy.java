@@ -0,0 +1,185 @@
+package me.hexian000.massdownload;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import me.hexian000.massdownload.engine.DownloadManager;
+
+import static me.hexian000.massdownload.DownloadApp.LOG_TAG;
+
+/**
+ * Fits the budget of a {@link DownloadManager} to the network and the battery. An unmetered
+ * network gets the full budget, a metered one a quarter of the connections and buffer, and
+ * power saving or a low battery halves that again. The rate is only capped when saving on a
+ * metered network, otherwise finishing sooner lets the radio go idle sooner. Downloads pause
+ * while there is no network and move over when the default network changes, so connections
+ * bound to the old network end without failing through their retries. NIO connections stop at
+ * once, a thread blocked in a read stops when the read returns, at the latest after its read
+ * timeout. Changes run on a thread of their own, pausing waits for the locks of running
+ * downloads.
+ */
+class ConnectionPolicy extends ConnectivityManager.NetworkCallback {
+	private static final int LOW_BATTERY = 15; // percent
+	private static final long SAVING_METERED_RATE = 1024 * 1024; // 1 MiB/s
+	private final Context context;
+	private final DownloadManager manager;
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final int connections;
+	private final int bufferSize;
+	private final BroadcastReceiver powerReceiver;
+	// only touched on the policy thread
+	private Network network; // the default network, null while there is none
+	private boolean metered;
+	private boolean plugged;
+	private int battery; // percent, -1 when unknown
+	private boolean saving;
+	private int appliedConnections;
+	private int appliedBufferSize;
+	private long appliedRate;
+
+	/**
+	 * @param connections budget on an unmetered network with power to spare
+	 * @param bufferSize  write buffer in bytes on an unmetered network with power to spare
+	 */
+	ConnectionPolicy(@NonNull Context context, @NonNull DownloadManager manager,
+	                 int connections, int bufferSize) {
+		this.context = context;
+		this.manager = manager;
+		thread = new HandlerThread("ConnectionPolicy");
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		this.connections = connections;
+		this.bufferSize = bufferSize;
+		powerReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				updatePower(intent);
+			}
+		};
+		battery = -1;
+		appliedConnections = connections;
+		appliedBufferSize = bufferSize;
+		appliedRate = 0;
+	}
+
+	void register() {
+		IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+		filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+		// the battery state is sticky and delivered at once
+		context.registerReceiver(powerReceiver, filter, null, handler);
+		ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(
+				Context.CONNECTIVITY_SERVICE);
+		if (connectivity != null) {
+			connectivity.registerDefaultNetworkCallback(this);
+		}
+	}
+
+	void unregister() {
+		context.unregisterReceiver(powerReceiver);
+		ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(
+				Context.CONNECTIVITY_SERVICE);
+		if (connectivity != null) {
+			connectivity.unregisterNetworkCallback(this);
+		}
+		thread.quitSafely();
+	}
+
+	@Override
+	public void onAvailable(Network network) {
+		handler.post(() -> available(network));
+	}
+
+	@Override
+	public void onLost(Network network) {
+		handler.post(() -> lost(network));
+	}
+
+	@Override
+	public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+		final boolean metered = !capabilities.hasCapability(
+				NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+		handler.post(() -> {
+			if (network.equals(this.network)) {
+				this.metered = metered;
+				apply();
+			}
+		});
+	}
+
+	private void available(@NonNull Network network) {
+		final Network previous = this.network;
+		this.network = network;
+		if (previous == null) {
+			Log.d(LOG_TAG, "network available, resuming");
+			manager.resume();
+		} else if (!previous.equals(network)) {
+			Log.d(LOG_TAG, "default network changed, reconnecting");
+			manager.pause();
+			manager.resume();
+		}
+	}
+
+	private void lost(@NonNull Network network) {
+		if (network.equals(this.network)) {
+			Log.d(LOG_TAG, "network lost, pausing");
+			this.network = null;
+			manager.pause();
+		}
+	}
+
+	private void updatePower(@NonNull Intent intent) {
+		if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+			final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			battery = level < 0 || scale <= 0 ? -1 : level * 100 / scale;
+			plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		}
+		final PowerManager power = (PowerManager) context.getSystemService(
+				Context.POWER_SERVICE);
+		final boolean powerSave = power != null && power.isPowerSaveMode();
+		saving = powerSave || (!plugged && battery >= 0 && battery <= LOW_BATTERY);
+		apply();
+	}
+
+	private void apply() {
+		int connections = this.connections;
+		int bufferSize = this.bufferSize;
+		long rate = 0;
+		if (metered) {
+			connections /= 4;
+			bufferSize /= 4;
+		}
+		if (saving) {
+			connections /= 2;
+			bufferSize /= 2;
+			if (metered) {
+				rate = SAVING_METERED_RATE;
+			}
+		}
+		connections = Math.max(connections, 1);
+		if (connections == appliedConnections && bufferSize == appliedBufferSize &&
+				rate == appliedRate) {
+			return; // battery broadcasts come with every percent
+		}
+		Log.d(LOG_TAG, "budget: connections=" + connections + " buffer=" + bufferSize +
+				" rate=" + rate + " metered=" + metered + " saving=" + saving);
+		manager.setConnections(connections);
+		manager.setBufferSize(bufferSize);
+		manager.setRateLimit(rate);
+		appliedConnections = connections;
+		appliedBufferSize = bufferSize;
+		appliedRate = rate;
+	}
+}
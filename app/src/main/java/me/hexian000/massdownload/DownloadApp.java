@@ -8,11 +8,18 @@ import android.app.NotificationManager;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+import me.hexian000.massdownload.engine.Logger;
+import me.hexian000.massdownload.engine.Writer;
+
 public class DownloadApp extends Application {
 	public static final String LOG_TAG = "MassDownload";
 	public final static String CHANNEL_DOWNLOAD_STATE = "download_state";
@@ -62,5 +69,14 @@ public class DownloadApp extends Application {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		Logger.setSink((priority, msg, tr) -> Log.println(priority, LOG_TAG,
+				tr == null ? msg : msg + '\n' + Log.getStackTraceString(tr)));
+		Writer.setPreallocator((fd, length) -> {
+			try {
+				Os.posix_fallocate(fd, 0, length);
+			} catch (ErrnoException e) {
+				throw new IOException(e);
+			}
+		});
 	}
 }
@@ -13,72 +13,113 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.Toast;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import me.hexian000.massdownload.engine.Download;
+import me.hexian000.massdownload.engine.DownloadManager;
+import me.hexian000.massdownload.engine.DownloadOptions;
+import me.hexian000.massdownload.engine.Progress;
 
 import static me.hexian000.massdownload.DownloadApp.CHANNEL_DOWNLOAD_STATE;
 import static me.hexian000.massdownload.DownloadApp.LOG_TAG;
 import static me.hexian000.massdownload.DownloadApp.sizeToString;
 
-public class DownloadService extends Service {
+public class DownloadService extends Service implements DownloadManager.Listener {
+	private static final String EXTRA_JOB_ID = "job_id";
+	private static final int NO_JOB_ID = Integer.MAX_VALUE;
+	private static final int MAX_ACTIVE = 3;
+	private static final int CONNECTIONS = 16;
+	private static final int BUFFER_SIZE = 64 * 1024 * 1024; // 64 MiB
+	private static final long STATUS_INTERVAL = 2000; // 2 seconds
 	private NotificationManager notificationManager;
-	private Download download;
+	private DownloadManager manager;
 	private Handler handler;
-	private Notification.Builder builder;
-	private boolean cancelling = false;
-	private int startId;
+	private ConnectionPolicy policy;
+	private final SparseArray<Notification.Builder> builders = new SparseArray<>();
+	private final SparseArray<String> lastStatus = new SparseArray<>();
+	private int foregroundId = 0;
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 		handler = new Handler();
+		manager = new DownloadManager(MAX_ACTIVE, CONNECTIONS, BUFFER_SIZE, this);
+		policy = new ConnectionPolicy(this, manager, CONNECTIONS, BUFFER_SIZE);
+		policy.register();
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		if ("cancel".equals(intent.getAction())) {
-			if (cancelling) {
-				return START_NOT_STICKY;
-			}
-			Log.d(LOG_TAG, "cancelling");
-			cancelling = true;
-			if (download != null) {
+			final int id = intent.getIntExtra(EXTRA_JOB_ID, 0);
+			for (DownloadManager.Job job : manager.getJobs()) {
+				if (job.getId() != id) {
+					continue;
+				}
+				Notification.Builder builder = builders.get(id);
+				if (builder == null) {
+					break; // already cancelling
+				}
+				Log.d(LOG_TAG, "cancelling " + id);
 				builder.setContentTitle(getResources().getString(R.string.notification_stopping))
 				       .setContentText("")
 				       .setSubText("")
 				       .setStyle(new Notification.BigTextStyle().bigText(""))
 				       .setProgress(0, 0, true);
-				final Notification notification = builder.build();
-				builder = null;
-				new Thread(() -> {
-					download.cancel();
-					try {
-						download.join();
-					} catch (InterruptedException e) {
-						Log.e(LOG_TAG, "error cancelling download", e);
-					}
-					Log.d(LOG_TAG, "download cancelled");
-					handler.post(this::stopSelf);
-				}).start();
-				notificationManager.notify(this.startId, notification);
+				notificationManager.notify(id, builder.build());
+				builders.remove(id);
+				new Thread(() -> manager.cancel(job)).start();
+				break;
 			}
+			stopIfIdle();
 			return START_NOT_STICKY;
-		} else if (download != null) {
-			Toast.makeText(this, R.string.already_downloading, Toast.LENGTH_LONG).show();
+		}
+
+		URL url = null;
+		try {
+			Uri uri = intent.getData();
+			if (uri != null) {
+				url = new URL(uri.toString());
+			}
+		} catch (MalformedURLException e) {
+			Log.e(LOG_TAG, "malformed URL", e);
+		}
+		if (url == null) {
+			if (foregroundId == 0) {
+				// started as a foreground service, must go foreground before stopping
+				startForeground(NO_JOB_ID, createBuilder(NO_JOB_ID).build());
+				stopForeground(true);
+			}
+			stopIfIdle();
 			return START_NOT_STICKY;
 		}
 
-		builder = new Notification.Builder(getApplicationContext());
+		DownloadManager.Job job = manager.enqueue(url,
+				Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+				new DownloadOptions(), 1);
+		final Notification.Builder builder = createBuilder(job.getId());
+		builders.put(job.getId(), builder);
+		if (foregroundId == 0) {
+			foregroundId = job.getId();
+		} else {
+			notificationManager.notify(job.getId(), builder.build());
+		}
+		// every start as a foreground service has to be answered
+		startForeground(foregroundId, builders.get(foregroundId).build());
+		return START_NOT_STICKY;
+	}
+
+	@NonNull
+	private Notification.Builder createBuilder(int id) {
+		Notification.Builder builder = new Notification.Builder(getApplicationContext());
 		builder.setContentIntent(null)
 		       .setContentTitle(getResources().getString(R.string.notification_downloading))
 		       .setSmallIcon(R.drawable.ic_file_download_black_24dp)
@@ -104,98 +145,116 @@ public class DownloadService extends Service {
 		}
 		Intent cancel = new Intent(this, DownloadService.class);
 		cancel.setAction("cancel");
+		cancel.putExtra(EXTRA_JOB_ID, id);
 		builder.addAction(
 				new Notification.Action.Builder(null, getResources().getString(R.string.cancel),
-						PendingIntent.getService(this, startId, cancel, 0)).build())
+						PendingIntent.getService(this, id, cancel,
+								PendingIntent.FLAG_UPDATE_CURRENT)).build())
 		       .setContentText(getResources().getString(R.string.notification_starting));
+		return builder;
+	}
 
-		startForeground(startId, builder.build());
-
-		URL url = null;
-		try {
-			Uri uri = intent.getData();
-			if (uri != null) {
-				url = new URL(uri.toString());
-			}
-		} catch (MalformedURLException e) {
-			Log.e(LOG_TAG, "malformed URL", e);
+	private void updateStatus(@NonNull DownloadManager.Job job, @NonNull Progress progress) {
+		final int id = job.getId();
+		final Notification.Builder builder = builders.get(id);
+		final Download download = job.getDownload();
+		if (builder == null || download == null ||
+				job.getState() != DownloadManager.Job.State.RUNNING) {
+			return;
+		}
+		// the length of a stream is unknown until it ends
+		final long length = progress.getLength();
+		final long now = progress.getWrittenSize();
+		final String total = length < 0 ? "?" : sizeToString(length);
+		final String text;
+		if (download.getContentEncoding() != null) {
+			// the speed counts compressed bytes, show them next to the decoded size
+			text = String.format(Locale.getDefault(),
+					getResources().getString(R.string.notification_status_compressed),
+					sizeToString(now), total, sizeToString(progress.getReceivedSize()),
+					progress.getHealthyThreadCount(), progress.getAliveThreadCount());
+		} else {
+			text = String.format(Locale.getDefault(),
+					getResources().getString(R.string.notification_status),
+					sizeToString(now), total,
+					progress.getHealthyThreadCount(), progress.getAliveThreadCount());
+		}
+		String speed = sizeToString(progress.getSpeed()) + "/s";
+		if (progress.isPaused()) {
+			speed = getResources().getString(R.string.notification_paused);
+		} else if (progress.getEta() >= 0) {
+			speed = String.format(Locale.getDefault(),
+					getResources().getString(R.string.notification_speed_eta),
+					sizeToString(progress.getSpeed()),
+					DateUtils.formatElapsedTime(progress.getEta() / 1000));
 		}
+		final int permille = length <= 0 ? 0 : (int) (now * 1000 / length);
 
-		if (url != null) {
-			final URL finalURL = url;
-			this.startId = startId;
-			new Thread(() -> this.downloadThread(finalURL)).start();
+		// rebuilding and posting costs a binder call, skip it while nothing visible changed
+		final String status = text + '\n' + speed + '\n' + permille;
+		if (status.equals(lastStatus.get(id))) {
+			return;
 		}
+		lastStatus.put(id, status);
+		builder.setContentTitle(download.getFilename())
+		       .setContentText(text)
+		       .setSubText(speed)
+		       .setStyle(new Notification.BigTextStyle().bigText(text))
+		       .setProgress(1000, permille, length < 0);
+		notificationManager.notify(id, builder.build());
+	}
 
-		return START_NOT_STICKY;
+	@Override
+	public void onStarted(@NonNull DownloadManager.Job job) {
+		Log.d(LOG_TAG, "download started normally: " + job.getId());
+		final Download download = job.getDownload();
+		if (download != null) {
+			download.addProgressListener(
+					progress -> handler.post(() -> updateStatus(job, progress)),
+					STATUS_INTERVAL);
+		}
 	}
 
-	private void downloadThread(@NonNull URL url) {
-		Timer statusTimer = new Timer();
-		boolean failed = true;
-		try {
-			download = new Download(url,
-					Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
-			Log.d(LOG_TAG, "download created");
-			download.start();
-			Log.d(LOG_TAG, "download started normally");
-			statusTimer.schedule(new TimerTask() {
-				long lastLength = 0;
-
-				@Override
-				public void run() {
-					handler.post(() -> {
-						if (builder == null) {
-							return;
-						}
-						long length = download.getLength();
-						long now = length - download.getRemainingLength();
-						double speed = (now - lastLength) / 2; // per 2 sec
-						lastLength = now;
-						String text = String.format(Locale.getDefault(),
-								getResources().getString(R.string.notification_status),
-								sizeToString(now), sizeToString(length),
-								download.getHealthyThreadCount(), download.getAliveThreadCount());
-
-						int progress = (int) (now * 1000 / length);
-						builder.setContentTitle(download.getFilename())
-						       .setContentText(text)
-						       .setSubText(sizeToString(speed) + "/s")
-						       .setStyle(new Notification.BigTextStyle().bigText(text))
-						       .setProgress(1000, progress, false);
-						notificationManager.notify(startId, builder.build());
-					});
-				}
-			}, 2000, 2000);
-			download.join();
-			failed = download.isFailed();
-			if (failed) {
-				Log.d(LOG_TAG, "download failed");
-			} else {
-				Log.d(LOG_TAG, "download finished normally");
+	@Override
+	public void onFinished(@NonNull DownloadManager.Job job) {
+		handler.post(() -> {
+			final int id = job.getId();
+			switch (job.getState()) {
+			case SUCCEEDED:
+				Log.d(LOG_TAG, "download finished normally: " + id);
+				Toast.makeText(this, R.string.download_success, Toast.LENGTH_SHORT).show();
+				break;
+			case CANCELLED:
+				Log.d(LOG_TAG, "download cancelled: " + id);
+				break;
+			default:
+				Log.d(LOG_TAG, "download failed: " + id);
+				Toast.makeText(this, R.string.download_failed, Toast.LENGTH_SHORT).show();
+				break;
 			}
-		} catch (IOException e) {
-			Log.e(LOG_TAG, "download not created", e);
-		} catch (InterruptedException e) {
-			Log.e(LOG_TAG, "download thread interrupted", e);
-		} finally {
-			statusTimer.cancel();
-			final boolean finalFailed = failed;
-			handler.post(() -> {
-				if (finalFailed) {
-					Toast.makeText(DownloadService.this, R.string.download_failed,
-							Toast.LENGTH_SHORT).show();
-				} else {
-					Toast.makeText(DownloadService.this, R.string.download_success,
-							Toast.LENGTH_SHORT).show();
+			builders.remove(id);
+			lastStatus.remove(id);
+			if (id == foregroundId) {
+				// move the foreground state to another running job
+				foregroundId = builders.size() > 0 ? builders.keyAt(0) : 0;
+				if (foregroundId != 0) {
+					startForeground(foregroundId, builders.valueAt(0).build());
 				}
-				DownloadService.this.stopSelf();
-			});
+			}
+			notificationManager.cancel(id);
+			stopIfIdle();
+		});
+	}
+
+	private void stopIfIdle() {
+		if (manager.isIdle()) {
+			stopSelf();
 		}
 	}
 
 	@Override
 	public void onDestroy() {
+		policy.unregister();
 		super.onDestroy();
 	}
 
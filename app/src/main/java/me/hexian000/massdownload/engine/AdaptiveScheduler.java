@@ -0,0 +1,222 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Probes for the connection count where the aggregate throughput stops growing. After each
+ * increase it waits for the smoothed rates to settle and compares them against the rate before
+ * the change: while the marginal gain is worth it the step doubles, on a plateau the count is
+ * held and probed again later, and on a loss the target shrinks so that finished segments are
+ * not replaced. New connections take work from the segment expected to finish last.
+ */
+class AdaptiveScheduler implements SegmentScheduler {
+	private static final long INTERVAL = 1000; // 1 second
+	private static final double ALPHA = 0.3; // EWMA weight of a new sample
+	private static final double GAIN_THRESHOLD = 0.05; // relative gain worth a connection
+	private static final long SETTLE_TIME = 4000; // 4 seconds
+	private static final long PROBE_INTERVAL = 30000; // 30 seconds
+	private static final int MAX_STEP = 4;
+	private final long minimalFork;
+	private final Map<Getter, Stats> stats;
+	private double aggregate; // bytes per millisecond
+	private double baseline;
+	private long lastTick;
+	private long changedAt;
+	private long holdUntil;
+	private boolean judging;
+	private volatile int target; // read by getters looking for work
+	private int step;
+
+	AdaptiveScheduler(long minimalFork) {
+		this.minimalFork = minimalFork;
+		stats = new IdentityHashMap<>();
+		aggregate = 0;
+		baseline = 0;
+		lastTick = -1;
+		changedAt = 0;
+		holdUntil = 0;
+		judging = false;
+		target = 1;
+		step = 1;
+	}
+
+	@Override
+	public long getInterval() {
+		return INTERVAL;
+	}
+
+	/**
+	 * @return smoothed aggregate throughput in bytes per millisecond
+	 */
+	double getThroughput() {
+		return aggregate;
+	}
+
+	/**
+	 * @return connection count the scheduler is aiming for, lowered after a loss
+	 */
+	@Override
+	public int getTarget(int limit) {
+		return Math.min(target, limit);
+	}
+
+	@NonNull
+	@Override
+	public List<Getter> schedule(@NonNull List<Getter> getters, long now, int limit) {
+		final int alive = sample(getters, now);
+		List<Getter> forked = new ArrayList<>();
+		if (alive == 0) {
+			return forked;
+		}
+		if (judging && now - changedAt >= SETTLE_TIME) {
+			judge(alive, now);
+		}
+		if (!judging && alive > target) {
+			holdUntil = now + PROBE_INTERVAL; // still retiring, hold once the count has settled
+		}
+		if (!judging && alive == target && now >= holdUntil && alive < limit) {
+			// probe one more step
+			baseline = aggregate;
+			target = alive + step;
+			judging = true;
+			changedAt = now;
+		}
+		final int wanted = Math.min(target, limit) - alive;
+		for (int i = 0; i < wanted; i++) {
+			Getter victim = pickVictim(getters);
+			if (victim == null) {
+				break;
+			}
+			Getter getter = victim.fork();
+			if (getter == null) {
+				break;
+			}
+			stats.put(getter, new Stats(getter));
+			forked.add(getter);
+		}
+		if (!forked.isEmpty()) {
+			Logger.d("adaptive fork: +" + forked.size() + " target=" + target +
+					" throughput=" + aggregate);
+		}
+		return forked;
+	}
+
+	/**
+	 * Update the smoothed rates
+	 *
+	 * @return alive getter count
+	 */
+	private int sample(List<Getter> getters, long now) {
+		final long dt = lastTick < 0 ? 0 : now - lastTick;
+		lastTick = now;
+		long delta = 0;
+		int alive = 0;
+		for (Getter getter : getters) {
+			if (getter.isAlive() && !stats.containsKey(getter)) {
+				stats.put(getter, new Stats(getter));
+			}
+		}
+		// getters that finished count their last bytes, even once the download dropped them
+		Iterator<Map.Entry<Getter, Stats>> it = stats.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Getter, Stats> entry = it.next();
+			final Getter getter = entry.getKey();
+			delta += entry.getValue().update(getter, dt);
+			if (getter.isAlive()) {
+				alive++;
+			} else {
+				it.remove();
+			}
+		}
+		if (dt > 0) {
+			aggregate = ewma(aggregate, (double) delta / dt);
+		}
+		return alive;
+	}
+
+	private void judge(int alive, long now) {
+		judging = false;
+		if (baseline <= 0) {
+			return;
+		}
+		final double gain = (aggregate - baseline) / baseline;
+		if (gain > GAIN_THRESHOLD) {
+			step = Math.min(step * 2, MAX_STEP); // still rising, go faster
+			holdUntil = now;
+		} else {
+			step = 1;
+			holdUntil = now + PROBE_INTERVAL;
+			if (gain < -GAIN_THRESHOLD) {
+				target = Math.max(alive - 1, 1); // let one segment retire
+			} else {
+				target = alive;
+			}
+		}
+		Logger.d("adaptive gain: " + gain + " target=" + target);
+	}
+
+	/**
+	 * @return the healthy segment expected to finish last, if it is worth splitting
+	 */
+	private Getter pickVictim(List<Getter> getters) {
+		Getter victim = null;
+		double maxTime = 0;
+		for (Getter getter : getters) {
+			if (!getter.isAlive() || !getter.isHealthy()) {
+				continue;
+			}
+			final long remain = getter.getRemainingSize();
+			if (remain <= minimalFork) {
+				continue;
+			}
+			final Stats s = stats.get(getter);
+			final double rate = s == null ? 0 : s.rate;
+			final double time = rate > 0 ? remain / rate : Double.MAX_VALUE;
+			final long cost = s == null ? -1 : s.connectCost;
+			if (time > maxTime && (cost < 0 || cost < time / 2)) {
+				maxTime = time;
+				victim = getter;
+			}
+		}
+		return victim;
+	}
+
+	private static double ewma(double average, double sample) {
+		return average <= 0 ? sample : average + ALPHA * (sample - average);
+	}
+
+	private static class Stats {
+		long received;
+		double rate; // bytes per millisecond
+		long connectCost; // milliseconds
+
+		Stats(Getter getter) {
+			received = getter.getReceivedSize();
+			rate = 0;
+			connectCost = -1;
+		}
+
+		/**
+		 * @return bytes received since the last update
+		 */
+		long update(Getter getter, long dt) {
+			final long now = getter.getReceivedSize();
+			final long delta = now - received;
+			received = now;
+			if (dt > 0 && getter.isAlive()) {
+				rate = ewma(rate, (double) delta / dt);
+			}
+			final long cost = getter.getConnectCost();
+			if (cost >= 0) {
+				connectCost = connectCost < 0 ? cost : (long) ewma(connectCost, cost);
+			}
+			return delta;
+		}
+	}
+}
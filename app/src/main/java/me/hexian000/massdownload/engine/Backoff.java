@@ -0,0 +1,134 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy of one getter. Delays grow exponentially with random jitter so that connections
+ * failing together do not come back together, and each class of failure is treated on its own:
+ * a reset connection is reopened at once, an overloaded server is given the time it asks for and
+ * more, a timed out range soon moves to another connection instead of waiting on the same path
+ * again, and a refused range is not requested again. Ranges give up sooner while another source
+ * could take them over. A getter that gives up hands the rest of its
+ * range back so that a connection still making progress can take it over.
+ */
+class Backoff {
+	static final int CONNECT_TIMEOUT = 15 * 1000; // 15 seconds
+	static final int READ_TIMEOUT = 30 * 1000; // 30 seconds
+	private static final long BASE = 500; // milliseconds
+	private static final long SERVER_BASE = 2000; // milliseconds
+	private static final long CAP = 30 * 1000; // 30 seconds
+	private int attempt;
+
+	Backoff() {
+		attempt = 0;
+	}
+
+	@NonNull
+	static Cause classify(@NonNull IOException e) {
+		if (e instanceof StatusException) {
+			final int code = ((StatusException) e).getCode();
+			if (code == 416) {
+				return Cause.UNSATISFIABLE;
+			}
+			if (code >= 500 || code == 429) {
+				return Cause.SERVER;
+			}
+			return Cause.REFUSED;
+		}
+		if (e instanceof SocketTimeoutException) {
+			return Cause.TIMEOUT;
+		}
+		if (e instanceof ConnectException || e instanceof NoRouteToHostException) {
+			return Cause.OTHER; // the host is down, not a dropped connection
+		}
+		if (e instanceof SocketException || e instanceof EOFException) {
+			return Cause.RESET;
+		}
+		return Cause.OTHER;
+	}
+
+	/**
+	 * Count a failed attempt
+	 *
+	 * @param elsewhere another source could take over the range
+	 * @return milliseconds to wait before the next attempt or -1 to give up
+	 */
+	long next(@NonNull IOException e, boolean elsewhere) {
+		final Cause cause = classify(e);
+		attempt++;
+		if (attempt > (elsewhere ? cause.handOver : cause.attempts)) {
+			return -1;
+		}
+		if (cause == Cause.RESET && attempt == 1) {
+			return 0; // usually a keep-alive connection the server or a middlebox dropped
+		}
+		final long max = Math.min(cause.base << (attempt - 1), CAP);
+		// half fixed so that the delay still grows, half random to spread reconnects
+		final long delay = max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+		if (cause == Cause.SERVER) {
+			// the server knows best when it can serve again
+			return Math.max(delay, ((StatusException) e).getRetryAfter());
+		}
+		return delay;
+	}
+
+	/**
+	 * The last attempt made progress, start counting again
+	 */
+	void reset() {
+		attempt = 0;
+	}
+
+	/**
+	 * @return failed attempts since the last progress
+	 */
+	int getAttempt() {
+		return attempt;
+	}
+
+	enum Cause {
+		/**
+		 * nothing arrived in time, the path or the server is slow, another connection or
+		 * mirror likely does better than the same one again
+		 */
+		TIMEOUT(1, 1, BASE),
+		/**
+		 * the connection was reset or closed before the response ended
+		 */
+		RESET(6, 6, BASE),
+		/**
+		 * 5xx or 429, the server is failing or overloaded for now and needs time to recover
+		 */
+		SERVER(6, 2, SERVER_BASE),
+		/**
+		 * 416, the range lies outside the file as the server has it
+		 */
+		UNSATISFIABLE(0, 0, 0),
+		/**
+		 * any other status, the source does not serve the range
+		 */
+		REFUSED(0, 0, 0),
+		/**
+		 * e.g. a refused connect, the host may be down for longer than retries wait
+		 */
+		OTHER(3, 1, BASE);
+
+		final int attempts; // failed attempts before giving up
+		final int handOver; // the same while another source could take over the range
+		final long base; // milliseconds, the first delay is between half and all of it
+
+		Cause(int attempts, int handOver, long base) {
+			this.attempts = attempts;
+			this.handOver = handOver;
+			this.base = base;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package me.hexian000.massdownload.engine;
+
+import java.nio.ByteBuffer;
+
+class BufferBlock {
+	final long offset;
+	final ByteBuffer data;
+
+	BufferBlock(ByteBuffer data, long offset) {
+		this.data = data;
+		this.offset = offset;
+	}
+}
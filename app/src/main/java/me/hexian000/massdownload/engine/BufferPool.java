@@ -0,0 +1,108 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size slabs shared by a {@link Writer} and its {@link Getter}s.
+ * Slabs are allocated lazily up to the capacity and then recycled, so a running download
+ * does not produce garbage. An exhausted pool blocks {@link #acquire()}, which is the
+ * backpressure signal for readers outpacing the disk.
+ */
+public class BufferPool {
+	private final int slabSize;
+	private volatile int maxSlabs;
+	private final BlockingQueue<ByteBuffer> free;
+	private final AtomicInteger allocated;
+
+	BufferPool(int slabSize, int capacity) {
+		this.slabSize = slabSize;
+		maxSlabs = Math.max(capacity / slabSize, 1);
+		free = new LinkedBlockingQueue<>();
+		allocated = new AtomicInteger(0);
+	}
+
+	/**
+	 * Change how many bytes of slabs may exist. Slabs over a lowered capacity are dropped as
+	 * they come back, a raised capacity is allocated on demand.
+	 */
+	public void setCapacity(int capacity) {
+		maxSlabs = Math.max(capacity / slabSize, 1);
+		while (allocated.get() > maxSlabs && free.poll() != null) {
+			allocated.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return size of each slab in bytes
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * @return an empty slab, blocks while all slabs are leased
+	 */
+	@NonNull
+	public ByteBuffer acquire() throws InterruptedException {
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			buf = allocate();
+			if (buf == null) {
+				buf = free.take();
+			}
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * @return an empty slab or null when all slabs are leased
+	 */
+	@Nullable
+	public ByteBuffer tryAcquire() {
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			buf = allocate();
+			if (buf == null) {
+				return null;
+			}
+		}
+		buf.clear();
+		return buf;
+	}
+
+	public void release(@NonNull ByteBuffer buf) {
+		int n;
+		while ((n = allocated.get()) > maxSlabs) {
+			if (allocated.compareAndSet(n, n - 1)) {
+				return; // over the capacity, left to the garbage collector
+			}
+		}
+		free.offer(buf);
+	}
+
+	/**
+	 * @return number of slabs currently leased
+	 */
+	public int getLeasedCount() {
+		return allocated.get() - free.size();
+	}
+
+	private ByteBuffer allocate() {
+		int n;
+		do {
+			n = allocated.get();
+			if (n >= maxSlabs) {
+				return null;
+			}
+		} while (!allocated.compareAndSet(n, n + 1));
+		// heap slabs: Getter reads into array() and the Writer writes from it, no extra copy
+		return ByteBuffer.allocate(slabSize);
+	}
+}
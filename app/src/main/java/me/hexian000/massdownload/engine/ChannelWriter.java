@@ -0,0 +1,83 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional FileChannel writes with no shared seek state. With zero threads each getter writes
+ * on its own thread, otherwise blocks are spread over several writer threads with a queue each.
+ * NIO getters share the selector thread, so they always get at least one writer thread.
+ */
+class ChannelWriter extends Writer {
+	private static final int STRIPE_SIZE = 4 * 1024 * 1024; // 4 MiB
+	private final WriterThread[] threads;
+
+	ChannelWriter(@NonNull DownloadOptions options, @NonNull File file, long length)
+			throws IOException {
+		super(options, file, length);
+		int count = options.getWriterThreads();
+		if (count == 0 && options.getEngineType() == Engine.Type.NIO) {
+			count = 1; // disk writes must not block the selector
+		}
+		threads = new WriterThread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new WriterThread(count);
+		}
+	}
+
+	@Override
+	void submit(@NonNull ByteBuffer data, long offset) throws IOException, InterruptedException {
+		if (threads.length == 0) {
+			final int length = data.remaining();
+			final long begin = System.nanoTime();
+			try {
+				persist(data, offset);
+			} catch (IOException e) {
+				pool.release(data);
+				throw e;
+			}
+			retire(data, offset, length);
+			persisted(offset, length, begin);
+			return;
+		}
+		// adjacent blocks share a thread so its write-back cache can merge them
+		final int i = (int) (offset / STRIPE_SIZE % threads.length);
+		threads[i].put(data, offset);
+	}
+
+	@Override
+	public void start() {
+		for (WriterThread thread : threads) {
+			thread.start();
+		}
+	}
+
+	@Override
+	int getQueueDepth() {
+		int depth = 0;
+		for (WriterThread thread : threads) {
+			depth += thread.getDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	void flush() throws InterruptedException {
+		for (WriterThread thread : threads) {
+			thread.drain();
+		}
+	}
+
+	@Override
+	void shutdown() throws InterruptedException {
+		for (WriterThread thread : threads) {
+			thread.finish();
+		}
+		for (WriterThread thread : threads) {
+			thread.join();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inflates a compressed response on its own thread between the getter and the writer. The
+ * getter hands over slabs of wire bytes in order and the decoder returns them to the pool once
+ * consumed, decoded bytes go to the writer at their own offsets so that the writer, the journal
+ * and progress all count the uncompressed file. The queue is short so that wire slabs cannot
+ * take the whole pool while the decoder waits for a slab to decode into.
+ */
+class Decoder {
+	private static final int QUEUE_SIZE = 16; // slabs
+	private static final long OFFER_INTERVAL = 100; // milliseconds
+	private static final ByteBuffer FINISH = ByteBuffer.allocate(0);
+	private final Writer writer;
+	private final String encoding;
+	private final BlockingQueue<ByteBuffer> queue;
+	private final Thread thread;
+	private volatile long decoded;
+	private volatile boolean failed;
+
+	/**
+	 * @param encoding value of Content-Encoding, see {@link #isSupported(String)}
+	 */
+	Decoder(@NonNull Writer writer, @NonNull String encoding) {
+		if (!isSupported(encoding)) {
+			throw new IllegalArgumentException("unsupported encoding: " + encoding);
+		}
+		this.writer = writer;
+		this.encoding = encoding.trim().toLowerCase(Locale.ROOT);
+		queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		thread = new Thread(this::run);
+		decoded = 0;
+		failed = false;
+	}
+
+	static boolean isSupported(@Nullable String encoding) {
+		if (encoding == null) {
+			return false;
+		}
+		switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+		case "gzip":
+		case "x-gzip":
+		case "deflate":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hand over the next slab of the response, owned by the decoder after this call
+	 */
+	void offer(@NonNull ByteBuffer data) throws IOException, InterruptedException {
+		while (!queue.offer(data, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) {
+			if (isStopped()) {
+				writer.recycle(data);
+				throw new IOException("decoder stopped");
+			}
+		}
+		if (isStopped()) {
+			discard(); // nobody takes it anymore
+		}
+	}
+
+	/**
+	 * The response has ended, decoding fails if the compressed stream has not
+	 */
+	void finish() {
+		try {
+			while (!queue.offer(FINISH, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) {
+				if (isStopped()) {
+					discard();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			thread.interrupt(); // cancelled, stop decoding
+		}
+	}
+
+	/**
+	 * Wait until everything offered has been decoded and handed to the writer
+	 */
+	void join() throws InterruptedException {
+		if (thread.getState() == Thread.State.NEW) {
+			discard();
+			return;
+		}
+		thread.join();
+	}
+
+	boolean isAlive() {
+		return thread.isAlive();
+	}
+
+	/**
+	 * @return true once decoding has ended, unlike {@link #isAlive()} not before the start
+	 */
+	private boolean isStopped() {
+		return thread.getState() == Thread.State.TERMINATED;
+	}
+
+	/**
+	 * @return true when the compressed stream was malformed or cut short
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return uncompressed bytes handed to the writer so far
+	 */
+	long getDecodedSize() {
+		return decoded;
+	}
+
+	@NonNull
+	String getEncoding() {
+		return encoding;
+	}
+
+	private void run() {
+		ByteBuffer buf = null;
+		try (InputStream in = encoding.equals("deflate") ?
+				new InflaterInputStream(new SlabStream()) : new GZIPInputStream(new SlabStream())) {
+			while (true) {
+				if (buf == null) {
+					buf = writer.obtain();
+				}
+				final int n = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+						buf.remaining());
+				if (n == -1) {
+					break;
+				}
+				buf.position(buf.position() + n);
+				if (!buf.hasRemaining()) {
+					final ByteBuffer full = buf;
+					buf = null;
+					submit(full);
+				}
+			}
+			if (buf != null && buf.position() > 0) {
+				final ByteBuffer last = buf;
+				buf = null;
+				submit(last);
+			}
+		} catch (IOException e) {
+			Logger.e("decoding failed", e);
+			failed = true;
+		} catch (InterruptedException e) {
+			failed = true;
+		} finally {
+			if (buf != null) {
+				writer.recycle(buf);
+			}
+			discard();
+		}
+	}
+
+	private void submit(@NonNull ByteBuffer buf) throws IOException, InterruptedException {
+		buf.flip();
+		final int len = buf.remaining();
+		writer.write(buf, decoded);
+		decoded += len;
+	}
+
+	/**
+	 * Return queued slabs to the pool
+	 */
+	private void discard() {
+		ByteBuffer data;
+		while ((data = queue.poll()) != null) {
+			if (data != FINISH) {
+				writer.recycle(data);
+			}
+		}
+	}
+
+	/**
+	 * Wire bytes of the queued slabs in order, each slab goes back to the pool once read
+	 */
+	private class SlabStream extends InputStream {
+		private ByteBuffer current;
+		private boolean ended;
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? current.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(@NonNull byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			final int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * @return false at the end of the response
+		 */
+		private boolean fill() throws IOException {
+			while (current == null || !current.hasRemaining()) {
+				if (ended) {
+					return false;
+				}
+				if (current != null) {
+					writer.recycle(current);
+					current = null;
+				}
+				final ByteBuffer next;
+				try {
+					next = queue.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if (next == FINISH) {
+					ended = true;
+					return false;
+				}
+				current = next;
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			if (current != null) {
+				writer.recycle(current);
+				current = null;
+			}
+		}
+	}
+}
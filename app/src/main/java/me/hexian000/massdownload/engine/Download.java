@@ -1,57 +1,410 @@
 package me.hexian000.massdownload.engine;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static me.hexian000.massdownload.DownloadApp.LOG_TAG;
-
 public class Download {
 	private static final int MINIMAL_FORK = 2 * 1024 * 1024; // 2 MiB
 	private final URL url;
 	private final Writer writer;
-	private final long length;
+	private final Decoder decoder; // null when the file is sent as is
+	private final MirrorSet mirrors;
+	private final SegmentScheduler scheduler;
+	private final Endgame endgame;
+	private volatile long length; // -1 until a stream of unknown length ends
 	private final Timer forkTimer;
 	private final File file;
 	private final String filename;
-	private List<Getter> getters;
-	private boolean cancelled;
+	private final Journal journal;
+	private final RangeSet completed;
+	private final Verifier verifier;
+	private final Metrics metrics;
+	private final ProgressMeter progress;
+	private final RateLimiter limiter;
+	private final Queue<long[]> givenBack;
+	private final long journalInterval;
+	private volatile boolean rangeSupported;
+	private SegmentMap getters;
+	private Getter first; // reads the probe response, until started
+	private URLConnection firstConnection;
+	private Getter stream; // reads a stream of unknown length, null when the length is known
+	private volatile int maxConnections;
+	private volatile int connectionLimit;
+	private volatile boolean cancelled;
+	private volatile boolean paused;
+	private boolean resumeRequested;
 
 	public Download(@NonNull URL url, @NonNull File path) throws IOException {
+		this(url, path, new DownloadOptions());
+	}
+
+	public Download(@NonNull URL url, @NonNull File path, @NonNull DownloadOptions options)
+			throws IOException {
+		this(Collections.singletonList(url), path, options);
+	}
+
+	/**
+	 * @param urls mirrors of the same file, the first one names the file and must be valid,
+	 *             others are dropped unless they serve the same length and validators
+	 */
+	public Download(@NonNull List<URL> urls, @NonNull File path, @NonNull DownloadOptions options)
+			throws IOException {
+		if (urls.isEmpty()) {
+			throw new IllegalArgumentException("no url");
+		}
+		final URL url = urls.get(0);
+		final long begin = System.nanoTime();
+		// the probe asks for the whole file as a range and its body becomes the first segment
 		URLConnection urlConnection = url.openConnection();
-		length = urlConnection.getContentLengthLong();
-		if (length < 1) {
-			throw new IOException("content-length < 1");
+		urlConnection.setRequestProperty("Range", "bytes=0-");
+		urlConnection.setRequestProperty("Accept-Encoding",
+				options.isCompression() ? "gzip, deflate" : "identity");
+		urlConnection.setConnectTimeout(Backoff.CONNECT_TIMEOUT);
+		urlConnection.setReadTimeout(Backoff.READ_TIMEOUT);
+		urlConnection.connect();
+		final long connected = System.nanoTime() - begin;
+		try {
+			long length = urlConnection.getContentLengthLong();
+			boolean rangeSupported = false;
+			if (urlConnection instanceof HttpURLConnection) {
+				final int code = ((HttpURLConnection) urlConnection).getResponseCode();
+				if (code == HttpURLConnection.HTTP_PARTIAL) {
+					rangeSupported = true;
+					length = parseTotal(urlConnection.getHeaderField("Content-Range"), length);
+				} else if (code != HttpURLConnection.HTTP_OK) {
+					throw new IOException("unexpected status: " + code);
+				}
+			}
+			String encoding = urlConnection.getHeaderField("Content-Encoding");
+			if (encoding != null && encoding.trim().equalsIgnoreCase("identity")) {
+				encoding = null;
+			}
+			if (encoding != null) {
+				if (!Decoder.isSupported(encoding)) {
+					throw new IOException("unsupported content-encoding: " + encoding);
+				}
+				// lengths and ranges count compressed bytes, the file size is known at the end
+				length = -1;
+				rangeSupported = false;
+				Logger.i("decoding " + encoding + " as a single stream");
+			} else if (length < 0) {
+				length = -1;
+				Logger.w("length unknown, downloading as a single stream");
+			} else if (length == 0) {
+				throw new IOException("content-length < 1");
+			} else if (!rangeSupported) {
+				Logger.w("ranges not supported, downloading as a single stream");
+			}
+			this.length = length;
+			this.rangeSupported = rangeSupported;
+			final long responded = System.nanoTime() - begin;
+			final long connectCost = responded / 1000000;
+			final List<byte[]> manifest = options.getManifest();
+			if (manifest != null && manifest.size() !=
+					(length + options.getPieceSize() - 1) / options.getPieceSize()) {
+				throw new IOException("manifest does not match content-length");
+			}
+			final String etag = urlConnection.getHeaderField("ETag");
+			final String lastModified = urlConnection.getHeaderField("Last-Modified");
+			this.url = url;
+			String filename = url.getFile();
+			int pos = filename.lastIndexOf('/');
+			if (pos != -1) {
+				filename = filename.substring(pos + 1);
+			}
+			String disposition = urlConnection.getHeaderField("Content-Disposition");
+			if (disposition != null) {
+				Matcher m = Pattern.compile("filename=\"(.*)\"").matcher(disposition);
+				if (m.find()) {
+					filename = m.group(0);
+				}
+			}
+			this.filename = filename;
+			file = new File(path.getPath() + "/" + filename);
+			journalInterval = options.getJournalInterval();
+			final long existing = file.length();
+			if (journalInterval > 0 && length > 0) {
+				journal = new Journal(Journal.journalFile(file), url.toString(), length, etag,
+						lastModified);
+				// without ranges the file can only be fetched from the start
+				completed = journal.open(existing <= length && rangeSupported);
+				// a lazily extended file ends after its last write
+				completed.remove(existing, length);
+				if (!completed.isEmpty()) {
+					Logger.d("resuming " + filename + ", " + completed.size() + " bytes done");
+				}
+			} else {
+				journal = null;
+				completed = new RangeSet();
+			}
+			// a preallocated file already holds its blocks, a sparse one only those written
+			final long held = options.getAllocation() == Writer.Allocation.PREALLOCATE ?
+					Math.min(existing, length) : completed.size();
+			final long needed = length - Math.max(held, completed.size());
+			final long usable = path.getUsableSpace();
+			if (length > 0 && usable > 0 && usable < needed) {
+				if (journal != null) {
+					journal.close();
+				}
+				throw new IOException("not enough free space, " + needed + " bytes needed");
+			}
+			metrics = new Metrics();
+			progress = new ProgressMeter();
+			final long allocateBegin = System.nanoTime();
+			writer = Writer.open(options, file, length);
+			metrics.allocated(System.nanoTime() - allocateBegin);
+			decoder = encoding != null ? new Decoder(writer, encoding) : null;
+			writer.setListener(journal);
+			writer.setMetrics(metrics);
+			limiter = new RateLimiter(options.getRateLimit(), options.getRateLimiter());
+			givenBack = new ConcurrentLinkedQueue<>();
+			mirrors = new MirrorSet(new WorkSource() {
+				@Nullable
+				@Override
+				public long[] steal(@NonNull Getter thief) {
+					return Download.this.steal(thief);
+				}
+
+				@Override
+				public boolean giveBack(long start, long end) {
+					// without ranges nobody can resume in the middle
+					if (cancelled || paused || !Download.this.rangeSupported ||
+							decoder != null || end == Getter.OPEN_END || writer.isFailed()) {
+						return false;
+					}
+					givenBack.add(new long[]{start, end});
+					return true;
+				}
+			});
+			final Engine engine = openEngine(options, url, urlConnection.getURL());
+			mirrors.add(url, engine, connectCost);
+			if (rangeSupported && length > 0) {
+				addMirrors(options, urls.subList(1, urls.size()), etag, lastModified);
+			}
+			writer.setWritten(completed);
+			verifier = openVerifier(options);
+			scheduler = openScheduler(options);
+			endgame = new Endgame(mirrors, writer, options.getEndgameThreshold());
+			maxConnections = options.getMaxConnections();
+			connectionLimit = rangeSupported && length > 0 ? maxConnections : 1;
+			getters = new SegmentMap();
+			forkTimer = new Timer();
+			final List<long[]> missing = length > 0 ? completed.missing(length) :
+					Collections.singletonList(new long[]{0, Getter.OPEN_END});
+			if (!missing.isEmpty() && missing.get(0)[0] == 0) {
+				// the NIO engine cannot take over a URLConnection
+				final ThreadEngine threads = engine instanceof ThreadEngine ?
+						(ThreadEngine) engine :
+						new ThreadEngine(url, writer, mirrors, metrics, limiter, options);
+				first = threads.newGetter(0, missing.get(0)[1], urlConnection, connected,
+						responded, decoder);
+				if (length < 0) {
+					stream = first;
+				}
+				mirrors.adopt(first);
+				firstConnection = urlConnection;
+			} else {
+				disconnect(urlConnection);
+			}
+		} catch (IOException | RuntimeException e) {
+			disconnect(urlConnection);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param contentRange e.g. "bytes 0-999/1000"
+	 * @return the total length or fallback when unknown
+	 */
+	static long parseTotal(@Nullable String contentRange, long fallback) {
+		if (contentRange == null) {
+			return fallback;
+		}
+		final int slash = contentRange.lastIndexOf('/');
+		try {
+			return slash == -1 ? fallback : Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return fallback; // "*" when the server does not know
+		}
+	}
+
+	private static void disconnect(@Nullable URLConnection connection) {
+		if (connection instanceof HttpURLConnection) {
+			((HttpURLConnection) connection).disconnect();
+		}
+	}
+
+	/**
+	 * @param resolved the url after redirects, which the NIO engine cannot follow
+	 */
+	@NonNull
+	private Engine openEngine(@NonNull DownloadOptions options, @NonNull URL url,
+	                          @NonNull URL resolved) {
+		if (options.getEngineType() == Engine.Type.NIO) {
+			try {
+				return new NioEngine(resolved, writer, mirrors, metrics, limiter, options);
+			} catch (IOException e) {
+				Logger.w("NIO engine unavailable, using threads", e);
+			}
+		}
+		return new ThreadEngine(url, writer, mirrors, metrics, limiter, options);
+	}
+
+	/**
+	 * Validate the mirrors in parallel, so a slow or dead one costs at most its own timeouts,
+	 * and add those accepted in the order given
+	 */
+	private void addMirrors(@NonNull DownloadOptions options, @NonNull List<URL> urls,
+	                        @Nullable String etag, @Nullable String lastModified)
+			throws InterruptedIOException {
+		final long[] costs = new long[urls.size()];
+		final Thread[] threads = new Thread[urls.size()];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(() -> costs[index] = validate(urls.get(index), etag,
+					lastModified));
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while validating mirrors");
+		}
+		for (int i = 0; i < costs.length; i++) {
+			if (costs[i] >= 0) {
+				final URL mirror = urls.get(i);
+				mirrors.add(mirror, openEngine(options, mirror, mirror), costs[i]);
+			}
+		}
+	}
+
+	/**
+	 * Check that a mirror serves the same content as the first url. Validators missing on
+	 * either side are not held against the mirror.
+	 *
+	 * @return connect time cost in millisecond or -1 when the mirror is rejected
+	 */
+	private long validate(@NonNull URL mirror, @Nullable String etag,
+	                      @Nullable String lastModified) {
+		URLConnection conn = null;
+		try {
+			final long begin = System.currentTimeMillis();
+			conn = mirror.openConnection();
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).setRequestMethod("HEAD");
+			}
+			conn.setConnectTimeout(Backoff.CONNECT_TIMEOUT);
+			conn.setReadTimeout(Backoff.READ_TIMEOUT);
+			final long mirrorLength = conn.getContentLengthLong();
+			final long cost = System.currentTimeMillis() - begin;
+			if (mirrorLength != length) {
+				Logger.w("mirror rejected, length " + mirrorLength + ": " + mirror);
+				return -1;
+			}
+			if (!matches(etag, conn.getHeaderField("ETag")) ||
+					!matches(lastModified, conn.getHeaderField("Last-Modified"))) {
+				Logger.w("mirror rejected, validators differ: " + mirror);
+				return -1;
+			}
+			return cost;
+		} catch (IOException e) {
+			Logger.w("mirror rejected: " + mirror, e);
+			return -1;
+		} finally {
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).disconnect();
+			}
+		}
+	}
+
+	@Nullable
+	private Verifier openVerifier(@NonNull DownloadOptions options) {
+		final Verifier.Algorithm algorithm = options.getHashAlgorithm();
+		if (algorithm == null) {
+			return null;
 		}
-		this.url = url;
-		String filename = url.getFile();
-		int pos = filename.lastIndexOf('/');
-		if (pos != -1) {
-			filename = filename.substring(pos + 1);
+		if (length < 0) {
+			Logger.w("length unknown, not verifying");
+			return null;
+		}
+		final Verifier verifier = new Verifier(writer, algorithm, options.getPieceSize(), length,
+				options.getManifest(), completed, getHeldLimit(options.getBufferSize()));
+		writer.setVerifier(verifier);
+		if (journal != null) {
+			// a resume trusts the journal, so only pieces that passed may go into it
+			writer.setListener(null);
+			verifier.setListener(journal);
+		}
+		return verifier;
+	}
+
+	private static boolean matches(@Nullable String expected, @Nullable String actual) {
+		return expected == null || actual == null || expected.equals(actual);
+	}
+
+	/**
+	 * Split the segment expected to finish last for a getter that ran out of work
+	 */
+	@Nullable
+	private long[] steal(@NonNull Getter thief) {
+		if (cancelled || paused || writer.isFailed()) {
+			return null;
 		}
-		String disposition = urlConnection.getHeaderField("Content-Disposition");
-		if (disposition != null) {
-			Matcher m = Pattern.compile("filename=\"(.*)\"").matcher(disposition);
-			if (m.find()) {
-				filename = m.group(0);
+		if (getAliveThreadCount() > scheduler.getTarget(connectionLimit)) {
+			return null; // over budget or over the scheduler's target, let this one retire
+		}
+		// a range another getter gave up on goes first, it has nobody working on it
+		final long[] range = takeGivenBack();
+		if (range != null) {
+			return range;
+		}
+		Getter victim = null;
+		double maxTime = 0;
+		for (Getter getter : getters) {
+			final long remain = getter.getRemainingSize();
+			if (getter == thief || !getter.isAlive() || remain <= MINIMAL_FORK) {
+				continue;
 			}
+			final double rate = getter.getDataRate();
+			final double time = rate > 0 ? remain / rate : Double.MAX_VALUE;
+			if (time > maxTime) {
+				maxTime = time;
+				victim = getter;
+			}
+		}
+		// the cut fails harmlessly if the victim moved on or another thief split it first
+		return victim == null ? null : victim.cut();
+	}
+
+	@NonNull
+	private static SegmentScheduler openScheduler(@NonNull DownloadOptions options) {
+		switch (options.getSchedulerType()) {
+		case SIMPLE:
+			return new SimpleScheduler(MINIMAL_FORK);
+		case ADAPTIVE:
+			return new AdaptiveScheduler(MINIMAL_FORK);
+		default:
+			throw new IllegalArgumentException("unknown scheduler type");
 		}
-		this.filename = filename;
-		file = new File(path.getPath() + "/" + filename);
-		writer = new Writer(64 * 1024 * 1024, file, length);
-		getters = Collections.synchronizedList(new ArrayList<>());
-		forkTimer = new Timer();
 	}
 
 	@NonNull
@@ -60,22 +413,181 @@ public class Download {
 	}
 
 	public void start() {
-		Getter getter = new Getter(url, writer, 0, length);
-		getter.start();
-		getters.add(getter);
+		synchronized (forkTimer) {
+			if (cancelled) {
+				return;
+			}
+			startLocked();
+		}
+		writer.start();
+		if (decoder != null) {
+			decoder.start();
+		}
+		if (verifier != null) {
+			verifier.start();
+		}
+	}
+
+	private void startLocked() {
+		metrics.started();
+		progress.started(System.currentTimeMillis(), writer.getWrittenSize());
+		// a stream has nothing to split until its length is known
+		final List<long[]> missing = stream != null ?
+				Collections.singletonList(new long[]{0, Getter.OPEN_END}) :
+				completed.missing(length);
+		if (paused) {
+			// paused before the start, resume() starts from the missing ranges
+			disconnect(firstConnection);
+		} else {
+			for (long[] range : missing) {
+				Getter getter = first != null && range[0] == 0 ? first :
+						mirrors.newGetter(range[0], range[1]);
+				getter.start();
+				getters.add(getter);
+			}
+		}
+		first = null;
+		firstConnection = null;
 
 		forkTimer.scheduleAtFixedRate(new TimerTask() {
 			@Override
 			public void run() {
 				synchronized (forkTimer) {
-					if (!cancelled) {
-						smartFork();
+					if (!cancelled && !paused && !writer.isFailed()) {
+						settle();
+						final List<Getter> snapshot = getters.snapshot();
+						mirrors.update(System.currentTimeMillis());
+						getters.addAll(refetch());
+						final int limit = connectionLimit;
+						// spare slots take given back ranges while some connection makes
+						// progress, once none does join() decides on them
+						if (getHealthyThreadCount() > 0) {
+							getters.addAll(restart(limit - getAliveThreadCount()));
+						}
+						getters.addAll(scheduler.schedule(snapshot, System.currentTimeMillis(),
+								limit));
+						if (!limiter.isLimited()) {
+							// more connections cannot beat the rate limit
+							getters.addAll(endgame.check(snapshot, limit));
+						}
 					}
 				}
 			}
-		}, 5000, 5000);
+		}, scheduler.getInterval(), scheduler.getInterval());
+		forkTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				// not under the lock, every counter read is safe without it
+				if (progress.isWatched()) {
+					progress.publish(sampleProgress(), false);
+				}
+			}
+		}, ProgressMeter.INTERVAL, ProgressMeter.INTERVAL);
+		if (journal != null) {
+			forkTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (forkTimer) {
+						try {
+							journal.sync(writer);
+						} catch (IOException e) {
+							Logger.e("journal sync error", e);
+						}
+					}
+				}
+			}, journalInterval, journalInterval);
+		}
+	}
 
-		writer.start();
+	/**
+	 * Start getters for pieces that failed verification
+	 */
+	@NonNull
+	private List<Getter> refetch() {
+		List<Getter> started = new ArrayList<>();
+		if (verifier == null) {
+			return started;
+		}
+		for (long[] range : verifier.takeRefetch()) {
+			Getter getter = mirrors.newGetter(range[0], range[1]);
+			getter.start();
+			started.add(getter);
+		}
+		return started;
+	}
+
+	/**
+	 * Start getters for ranges given back, taken for pipelining or left by failed getters
+	 *
+	 * @param count getters to start at most
+	 */
+	@NonNull
+	private List<Getter> restart(int count) {
+		List<Getter> started = new ArrayList<>();
+		long[] range;
+		while (started.size() < count && (range = takeGivenBack()) != null) {
+			Getter getter = mirrors.newGetter(range[0], range[1]);
+			getter.start();
+			started.add(getter);
+		}
+		return started;
+	}
+
+	/**
+	 * Start getters for every byte not written yet, after a pause all getters have ended and
+	 * the writer knows exactly what is missing
+	 */
+	@NonNull
+	private List<Getter> resumeMissing() {
+		givenBack.clear();
+		givenBack.addAll(writer.getMissing(length));
+		return restart(connectionLimit);
+	}
+
+	/**
+	 * @return a range given back and not covered by a racer since, or null
+	 */
+	@Nullable
+	private long[] takeGivenBack() {
+		long[] range;
+		while ((range = givenBack.poll()) != null) {
+			if (!writer.isWritten(range[0], range[1])) {
+				return range;
+			}
+		}
+		return null;
+	}
+
+	@NonNull
+	private Progress sampleProgress() {
+		int alive = 0;
+		int healthy = 0;
+		for (Getter getter : getters) {
+			if (getter.isAlive()) {
+				alive++;
+				if (getter.isHealthy()) {
+					healthy++;
+				}
+			}
+		}
+		return progress.sample(System.currentTimeMillis(), length, writer.getWrittenSize(),
+				metrics.getReceivedSize(), alive, healthy, paused);
+	}
+
+	/**
+	 * Receive progress events about every interval milliseconds, rounded up to the sampling
+	 * period of one second, and a last one once the download has ended. Counters are sampled
+	 * once for all listeners and only while some listener is subscribed.
+	 */
+	public void addProgressListener(@NonNull Progress.Listener listener, long interval) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("interval < 0");
+		}
+		progress.subscribe(listener, interval);
+	}
+
+	public void removeProgressListener(@NonNull Progress.Listener listener) {
+		progress.unsubscribe(listener);
 	}
 
 	public int getAliveThreadCount() {
@@ -98,53 +610,184 @@ public class Download {
 		return healthy;
 	}
 
-	private void smartFork() {
-		int alive = getAliveThreadCount();
-		int healthy = getHealthyThreadCount();
-		if (alive < 10 && alive == healthy) {
-			Log.d(LOG_TAG, "start fork: " + healthy + "/" + alive);
-			Getter maxGetter = null;
-			long maxRemain = 0;
-			long maxCost = -1;
-			for (Getter getter : getters) {
-				final long remain = getter.getRemainingSize();
-				final long cost = getter.getConnectCost();
-				if (remain > maxRemain) {
-					maxRemain = remain;
-					maxGetter = getter;
-				}
-				if (cost > maxCost) {
-					maxCost = cost;
-				}
-			}
-			if (maxCost >= 0 && maxGetter != null && maxRemain > MINIMAL_FORK) {
-				final double timeRemain = (double) maxRemain / maxGetter.getDataRate();
-				Log.d(LOG_TAG, "maxCost: " + maxCost + " timeRemain: " + timeRemain);
-				if (maxCost < timeRemain / 2) { // worthy to fork
-					Getter newGetter = maxGetter.fork();
-					if (newGetter != null) {
-						getters.add(newGetter);
-					}
-				}
+	/**
+	 * Change how many connections this download may use, e.g. when a manager rebalances. Extra
+	 * connections retire as they finish their ranges. Stays 1 when the server ignores ranges.
+	 */
+	public void setConnectionLimit(int limit) {
+		maxConnections = Math.max(limit, 1);
+		connectionLimit = rangeSupported && length > 0 ? maxConnections : 1;
+	}
+
+	/**
+	 * Take the length of a stream once a response or its end revealed it. A length told by a
+	 * range response while the stream is still running means the rest can be split.
+	 */
+	private void settle() {
+		final Getter stream = this.stream;
+		if (stream == null || length >= 0) {
+			return;
+		}
+		if (decoder != null) {
+			// a compressed stream is never split, its file ends with the last decoded byte
+			if (!stream.isAlive() && !decoder.isAlive() && !decoder.isFailed()) {
+				length = decoder.getDecodedSize();
 			}
+			return;
 		}
+		final long end = stream.getEndPosition();
+		if (end == Getter.OPEN_END) {
+			return;
+		}
+		if (stream.isAlive() && end > stream.getPosition()) {
+			Logger.i("length revealed: " + end + ", splitting the stream");
+			rangeSupported = true;
+		}
+		length = end;
+		connectionLimit = rangeSupported ? maxConnections : 1;
 	}
 
+	public int getConnectionLimit() {
+		return connectionLimit;
+	}
+
+	/**
+	 * Change how fast this download may receive, shared equally among its active connections
+	 *
+	 * @param rate bytes per second, 0 for unlimited
+	 */
+	public void setRateLimit(long rate) {
+		limiter.setRate(rate);
+	}
+
+	public long getRateLimit() {
+		return limiter.getRate();
+	}
+
+	/**
+	 * Change how many bytes of write buffer this download may hold, e.g. when its share of a
+	 * shared budget changes. Write-back caches and the verifier keep to the new size as further
+	 * blocks arrive.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < Writer.SLAB_SIZE) {
+			throw new IllegalArgumentException("bufferSize too small");
+		}
+		writer.setBufferSize(bufferSize);
+		if (verifier != null) {
+			verifier.setHeldLimit(getHeldLimit(bufferSize));
+		}
+	}
+
+	/**
+	 * @return a quarter of the write buffer may wait for gaps within pieces
+	 */
+	private static long getHeldLimit(int bufferSize) {
+		return bufferSize / 4;
+	}
+
+	/**
+	 * @return mirrors accepted for this download, including the first url
+	 */
+	public int getMirrorCount() {
+		return mirrors.size();
+	}
+
+	/**
+	 * @return mirrors not quarantined for failing or crawling
+	 */
+	public int getUsableMirrorCount() {
+		return mirrors.getUsableCount();
+	}
+
+	/**
+	 * @return bytes in the file or -1 while a stream of unknown length is running
+	 */
 	public long getLength() {
 		return length;
 	}
 
+	/**
+	 * @return false when the server ignored the range of the probe, the file is then read as a
+	 * single stream
+	 */
+	public boolean isRangeSupported() {
+		return rangeSupported;
+	}
+
+	/**
+	 * @return Content-Encoding decoded on the fly or null when the file is sent as is
+	 */
+	@Nullable
+	public String getContentEncoding() {
+		return decoder == null ? null : decoder.getEncoding();
+	}
+
+	/**
+	 * @return bytes still missing or -1 while the length is unknown
+	 */
 	public long getRemainingLength() {
-		long remaining = 0;
+		final long length = this.length;
+		return length < 0 ? -1 : length - writer.getWrittenSize();
+	}
+
+	/**
+	 * Stop every connection where it is, e.g. while the network is down or switched, without
+	 * failing the download. Ranges are not handed over while paused, and {@link #resume()}
+	 * continues with the bytes not written yet. Calling it again while paused does nothing.
+	 *
+	 * @return false when the download cannot continue from an offset and keeps running: the
+	 * server ignores ranges, the response is compressed or the length is still unknown
+	 */
+	public boolean pause() {
+		synchronized (forkTimer) {
+			if (cancelled || !isPauseSupported()) {
+				return false;
+			}
+			paused = true;
+			resumeRequested = false;
+		}
 		for (Getter getter : getters) {
-			remaining += getter.getRemainingSize();
+			getter.truncate();
 		}
-		return remaining;
+		return true;
+	}
+
+	/**
+	 * @return false while {@link #pause()} would leave the download running
+	 */
+	public boolean isPauseSupported() {
+		return rangeSupported && decoder == null && length >= 0;
+	}
+
+	/**
+	 * Continue a paused download on new connections once its getters have stopped
+	 */
+	public void resume() {
+		synchronized (forkTimer) {
+			if (paused) {
+				resumeRequested = true;
+				forkTimer.notifyAll();
+			}
+		}
+	}
+
+	public boolean isPaused() {
+		return paused;
 	}
 
 	public void cancel() {
-		cancelled = true;
-		forkTimer.cancel();
+		synchronized (forkTimer) {
+			cancelled = true;
+			forkTimer.notifyAll();
+			forkTimer.cancel();
+			if (firstConnection != null) {
+				// never started
+				disconnect(firstConnection);
+				first = null;
+				firstConnection = null;
+			}
+		}
 		for (Getter getter : getters) {
 			getter.interrupt();
 		}
@@ -158,19 +801,89 @@ public class Download {
 				}
 			}
 		} else {
-			int i = 0;
-			while (i < getters.size()) {
-				getters.get(i).join();
-				i++;
+			long lastWritten = -1;
+			while (true) {
+				for (Getter getter : getters) {
+					getter.join();
+				}
+				// ranges of failed getters get new connections while that still makes progress
+				synchronized (forkTimer) {
+					while (paused && !resumeRequested && !cancelled) {
+						forkTimer.wait();
+					}
+					if (cancelled) {
+						break;
+					}
+					if (writer.isFailed()) {
+						// new connections would only fail the same way
+						Logger.e("file write failed, giving up");
+						break;
+					}
+					if (getAliveThreadCount() > 0) {
+						continue; // the fork timer started more getters, e.g. endgame racers
+					}
+					mirrors.update(System.currentTimeMillis());
+					List<Getter> moved;
+					final long written = writer.getWrittenSize();
+					if (paused) {
+						paused = false;
+						resumeRequested = false;
+						lastWritten = written;
+						moved = resumeMissing();
+					} else if (written > lastWritten) {
+						lastWritten = written;
+						moved = restart(Integer.MAX_VALUE);
+					} else {
+						if (!givenBack.isEmpty()) {
+							Logger.e("no connection makes progress, giving up");
+							givenBack.clear();
+						}
+						moved = new ArrayList<>();
+					}
+					if (moved.isEmpty() && verifier != null) {
+						// hash the tail still in write buffers, bad pieces are fetched again
+						writer.flush();
+						verifier.drain();
+						moved = refetch();
+					}
+					if (moved.isEmpty()) {
+						break;
+					}
+					getters.addAll(moved);
+				}
 			}
 		}
-		forkTimer.cancel();
+		if (decoder != null) {
+			decoder.join();
+		}
+		synchronized (forkTimer) {
+			forkTimer.cancel();
+			settle();
+		}
+		// the timer may have run once more before it was cancelled
+		for (Getter getter : getters.snapshot()) {
+			getter.join();
+		}
+		if (progress.isWatched()) {
+			progress.publish(sampleProgress(), true);
+		}
+		mirrors.shutdown();
 		writer.close();
+		if (verifier != null) {
+			verifier.close();
+		}
+		Logger.i(getMetrics().export());
+		if (journal != null) {
+			journal.close();
+			if (cancelled || !isFailed()) {
+				journal.delete();
+			}
+		}
 		if (cancelled) {
 			if (file.delete()) {
-				Log.e(LOG_TAG, "deleted " + filename);
+				Logger.e("deleted " + filename);
 			} else {
-				Log.e(LOG_TAG, "failed deleting " + filename);
+				Logger.e("failed deleting " + filename);
 			}
 		}
 	}
@@ -180,11 +893,64 @@ public class Download {
 			if (getter.isAlive()) {
 				throw new IllegalStateException("download is still running");
 			}
-			if (getter.isFailed()) {
-				return true;
-			}
 		}
-		return false;
+		// a failed getter does not fail the download if a racer covered its range, a failed
+		// write does, even when the error came from the final sync
+		final long length = this.length;
+		return length < 0 || writer.isFailed() || !writer.isWritten(0, length);
+	}
+
+	/**
+	 * @return endgame races started
+	 */
+	public int getEndgameRaceCount() {
+		return endgame.getRaceCount();
+	}
+
+	/**
+	 * @return endgame races that finished the range sooner than the straggler alone
+	 */
+	public int getEndgameRacerWins() {
+		return endgame.getRacerWins();
+	}
+
+	/**
+	 * @return estimated milliseconds saved by endgame splitting
+	 */
+	public long getEndgameSavedTime() {
+		return endgame.getSavedTime();
+	}
+
+	/**
+	 * @return digest over the whole file after a successful join or null when hashing is off or
+	 * incomplete, for SHA-256 a digest of the piece digests rather than of the file
+	 * @see Verifier#getFileDigest()
+	 */
+	@Nullable
+	public byte[] getFileDigest() {
+		return verifier == null ? null : verifier.getFileDigest();
+	}
+
+	/**
+	 * @return pieces that failed verification, counting each attempt
+	 */
+	public int getCorruptPieceCount() {
+		return verifier == null ? 0 : verifier.getCorruptCount();
+	}
+
+	/**
+	 * @return counters and latencies so far, cheap enough to poll every few seconds
+	 */
+	@NonNull
+	public Metrics.Snapshot getMetrics() {
+		return metrics.snapshot(writer.getQueueDepth(), writer.pool.getLeasedCount());
+	}
+
+	/**
+	 * @return bytes downloaded more than once and dropped by the writer
+	 */
+	public long getDuplicatedLength() {
+		return writer.getDuplicatedSize();
 	}
 
 }
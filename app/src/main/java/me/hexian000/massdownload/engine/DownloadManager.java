@@ -0,0 +1,431 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several downloads at once under one connection budget and one buffer pool. Queued jobs
+ * start by priority, and the connection budget is split among running jobs in proportion to
+ * their priority, so connections move to the remaining jobs as others finish. A job starts only
+ * when it can get a connection of its own. The budget may change while jobs run, e.g. when the
+ * network or the power state changes, and running jobs it cannot cover wait paused.
+ */
+public class DownloadManager {
+	private final int maxActive;
+	private int connections;
+	private int bufferSize;
+	private final BufferPool pool;
+	private final RateLimiter limiter;
+	private final PriorityQueue<Job> queue;
+	private final List<Job> active;
+	private final AtomicInteger nextId;
+	private final Listener listener;
+	private boolean paused;
+
+	/**
+	 * @param maxActive   downloads running at the same time
+	 * @param connections connections shared by all running downloads
+	 * @param bufferSize  write buffer in bytes shared by all running downloads
+	 */
+	public DownloadManager(int maxActive, int connections, int bufferSize,
+	                       @NonNull Listener listener) {
+		this.maxActive = maxActive;
+		this.connections = connections;
+		this.bufferSize = bufferSize;
+		this.listener = listener;
+		pool = new BufferPool(Writer.SLAB_SIZE, bufferSize);
+		limiter = new RateLimiter(0);
+		queue = new PriorityQueue<>();
+		active = new ArrayList<>();
+		nextId = new AtomicInteger(1);
+	}
+
+	/**
+	 * @param priority higher runs first and gets a larger share of connections, at least 1
+	 */
+	@NonNull
+	public Job enqueue(@NonNull URL url, @NonNull File path, @NonNull DownloadOptions options,
+	                   int priority) {
+		return enqueue(Collections.singletonList(url), path, options, priority);
+	}
+
+	/**
+	 * @param urls mirrors of the same file, see {@link Download#Download(List, File,
+	 *             DownloadOptions)}
+	 */
+	@NonNull
+	public Job enqueue(@NonNull List<URL> urls, @NonNull File path,
+	                   @NonNull DownloadOptions options, int priority) {
+		// a copy, the manager sets its own pool and limiter on it
+		Job job = new Job(nextId.getAndIncrement(), urls, path, new DownloadOptions(options),
+				Math.max(priority, 1));
+		synchronized (this) {
+			queue.add(job);
+		}
+		schedule();
+		return job;
+	}
+
+	public void cancel(@NonNull Job job) {
+		synchronized (this) {
+			job.cancelled = true;
+			if (queue.remove(job)) {
+				job.state = Job.State.CANCELLED;
+			}
+		}
+		final Download download = job.download;
+		if (download != null) {
+			download.cancel();
+		} else if (job.state == Job.State.CANCELLED) {
+			listener.onFinished(job);
+		}
+	}
+
+	/**
+	 * Limit all running downloads together on top of their own limits, connections share the
+	 * rate equally whichever download they belong to
+	 *
+	 * @param rate bytes per second, 0 for unlimited
+	 */
+	public void setRateLimit(long rate) {
+		limiter.setRate(rate);
+	}
+
+	public long getRateLimit() {
+		return limiter.getRate();
+	}
+
+	/**
+	 * Change the connection budget, running downloads get their new shares at once and extra
+	 * connections retire as they finish their ranges
+	 */
+	public void setConnections(int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections < 1");
+		}
+		synchronized (this) {
+			this.connections = connections;
+		}
+		schedule();
+	}
+
+	public synchronized int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Change how many bytes of write buffer all running downloads may hold together, leased
+	 * buffers over a lowered budget are freed as they come back and running downloads size
+	 * their caches to the new share
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize <= 0");
+		}
+		synchronized (this) {
+			this.bufferSize = bufferSize;
+			pool.setCapacity(bufferSize);
+			for (Job job : active) {
+				final Download download = job.download;
+				if (download != null) {
+					download.setBufferSize(getShareSize(bufferSize));
+				}
+			}
+		}
+	}
+
+	public synchronized int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return write buffer of one running download
+	 */
+	private int getShareSize(int bufferSize) {
+		return Math.max(bufferSize / maxActive, Writer.SLAB_SIZE);
+	}
+
+	/**
+	 * Stop running downloads where they are and hold queued jobs, e.g. while the network is
+	 * down or switched. Downloads that cannot continue from an offset keep running and rely on
+	 * their retries.
+	 *
+	 * @see Download#pause()
+	 */
+	public void pause() {
+		final List<Job> running;
+		synchronized (this) {
+			paused = true;
+			running = new ArrayList<>(active);
+		}
+		for (Job job : running) {
+			final Download download = job.download;
+			if (download != null && !download.pause()) {
+				Logger.w("download " + job.id + " cannot pause, left running");
+			}
+		}
+	}
+
+	/**
+	 * Continue paused downloads on new connections and start queued jobs again
+	 */
+	public void resume() {
+		final List<Job> running;
+		synchronized (this) {
+			paused = false;
+			running = new ArrayList<>(active);
+		}
+		for (Job job : running) {
+			final Download download = job.download;
+			if (download != null && !job.starved) {
+				download.resume();
+			}
+		}
+		schedule();
+	}
+
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * @return queued and running jobs
+	 */
+	@NonNull
+	public synchronized List<Job> getJobs() {
+		List<Job> jobs = new ArrayList<>(active);
+		jobs.addAll(queue);
+		return jobs;
+	}
+
+	public synchronized boolean isIdle() {
+		return active.isEmpty() && queue.isEmpty();
+	}
+
+	private void schedule() {
+		List<Job> started = new ArrayList<>();
+		final List<Job> changed;
+		synchronized (this) {
+			// every running job needs a connection of its own
+			final int slots = Math.min(maxActive, connections);
+			while (!paused && active.size() < slots && !queue.isEmpty()) {
+				Job job = queue.poll();
+				active.add(job);
+				started.add(job);
+			}
+			changed = rebalance();
+		}
+		// pausing waits for the download, not under the lock of the manager
+		for (Job job : changed) {
+			settle(job);
+		}
+		for (Job job : started) {
+			job.state = Job.State.CONNECTING;
+			new Thread(() -> run(job)).start();
+		}
+	}
+
+	/**
+	 * Pause or resume a started job whose share went to or from none, by the latest decision
+	 * in case another rebalance overtook this one
+	 */
+	private void settle(@NonNull Job job) {
+		synchronized (job) {
+			if (job.starved) {
+				job.download.pause();
+			} else if (!isPaused()) {
+				job.download.resume();
+			}
+		}
+	}
+
+	/**
+	 * Split the connection budget among running jobs by priority. Each job covered by the
+	 * budget gets one connection and a share of the rest, the remainder goes to the highest
+	 * priorities, so the shares add up to the budget. Jobs past the budget get none and wait
+	 * paused, except those that cannot pause, which keep one connection over the budget.
+	 *
+	 * @return started jobs to pause or resume now that their share went to or from none
+	 */
+	@NonNull
+	private synchronized List<Job> rebalance() {
+		List<Job> changed = new ArrayList<>();
+		if (active.isEmpty()) {
+			return changed;
+		}
+		final List<Job> running = new ArrayList<>(active);
+		Collections.sort(running);
+		final int covered = Math.min(running.size(), connections);
+		int weights = 0;
+		for (int i = 0; i < covered; i++) {
+			weights += running.get(i).priority;
+		}
+		final int spare = connections - covered;
+		int remainder = spare;
+		for (int i = 0; i < covered; i++) {
+			final Job job = running.get(i);
+			job.share = 1 + spare * job.priority / weights;
+			remainder -= job.share - 1;
+		}
+		for (int i = 0; i < remainder; i++) {
+			running.get(i).share++;
+		}
+		for (int i = 0; i < running.size(); i++) {
+			final Job job = running.get(i);
+			if (i >= covered) {
+				job.share = 0;
+			}
+			final Download download = job.download;
+			if (download == null) {
+				continue;
+			}
+			download.setConnectionLimit(Math.max(job.share, 1));
+			final boolean starved = job.share == 0 && download.isPauseSupported();
+			if (starved != job.starved) {
+				job.starved = starved;
+				changed.add(job);
+			}
+		}
+		return changed;
+	}
+
+	private void run(Job job) {
+		try {
+			final int bufferSize;
+			synchronized (this) {
+				bufferSize = this.bufferSize;
+			}
+			job.options.setBufferPool(pool)
+			           .setBufferSize(getShareSize(bufferSize))
+			           .setRateLimiter(limiter);
+			Download download = new Download(job.urls, job.path, job.options);
+			synchronized (this) {
+				if (this.bufferSize != bufferSize) {
+					download.setBufferSize(getShareSize(this.bufferSize)); // changed while connecting
+				}
+				download.setConnectionLimit(Math.max(job.share, 1));
+				job.download = download;
+				// the budget may have dropped while connecting
+				job.starved = job.share == 0 && download.isPauseSupported();
+				if (paused || job.starved) {
+					download.pause();
+				}
+			}
+			if (job.cancelled) {
+				download.cancel();
+			} else {
+				download.start();
+				job.state = Job.State.RUNNING;
+				listener.onStarted(job);
+			}
+			download.join();
+			if (job.cancelled) {
+				job.state = Job.State.CANCELLED;
+			} else {
+				job.state = download.isFailed() ? Job.State.FAILED : Job.State.SUCCEEDED;
+			}
+		} catch (IOException e) {
+			Logger.e("download not created", e);
+			job.state = Job.State.FAILED;
+		} catch (InterruptedException e) {
+			Logger.e("download thread interrupted", e);
+			job.state = Job.State.FAILED;
+		} finally {
+			synchronized (this) {
+				active.remove(job);
+			}
+			schedule();
+			listener.onFinished(job);
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the job thread once the download has started
+		 */
+		void onStarted(@NonNull Job job);
+
+		/**
+		 * Called once per job when it has finished, failed or been cancelled
+		 */
+		void onFinished(@NonNull Job job);
+	}
+
+	public static class Job implements Comparable<Job> {
+		private final int id;
+		private final List<URL> urls;
+		private final File path;
+		private final DownloadOptions options;
+		private final int priority;
+		private volatile Download download;
+		private volatile State state;
+		private volatile boolean cancelled;
+		private int share; // connections, 0 past the budget
+		private volatile boolean starved; // paused for want of a connection
+
+		Job(int id, List<URL> urls, File path, DownloadOptions options, int priority) {
+			this.id = id;
+			this.urls = urls;
+			this.path = path;
+			this.options = options;
+			this.priority = priority;
+			download = null;
+			state = State.QUEUED;
+			cancelled = false;
+			share = 0;
+			starved = false;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		@NonNull
+		public URL getUrl() {
+			return urls.get(0);
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return the download once the job has connected, otherwise null
+		 */
+		@Nullable
+		public Download getDownload() {
+			return download;
+		}
+
+		@NonNull
+		public State getState() {
+			return state;
+		}
+
+		@Override
+		public int compareTo(@NonNull Job other) {
+			if (priority != other.priority) {
+				return other.priority - priority;
+			}
+			return id - other.id;
+		}
+
+		public enum State {
+			QUEUED,
+			CONNECTING,
+			RUNNING,
+			SUCCEEDED,
+			FAILED,
+			CANCELLED
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Tunables of a {@link Download}, defaults match a typical phone
+ */
+public class DownloadOptions {
+	private Engine.Type engineType = Engine.Type.THREAD;
+	private SegmentScheduler.Type schedulerType = SegmentScheduler.Type.ADAPTIVE;
+	private int maxConnections = 10;
+	private int hostConnections = 16;
+	private boolean pipelining = true;
+	private boolean compression = false;
+	private long endgameThreshold = 4 * 1024 * 1024; // 4 MiB
+	private Writer.Mode writerMode = Writer.Mode.CHANNEL;
+	private Writer.Allocation allocation = Writer.Allocation.PREALLOCATE;
+	private int writerThreads = 2;
+	private int bufferSize = 64 * 1024 * 1024; // 64 MiB
+	private int flushSize = 2 * 1024 * 1024; // 2 MiB
+	private long maxDirtyAge = 1000; // 1 second
+	private long journalInterval = 3000; // 3 seconds
+	private Verifier.Algorithm hashAlgorithm = null;
+	private int pieceSize = 1024 * 1024; // 1 MiB
+	private List<byte[]> manifest = null;
+	private long rateLimit = 0;
+	private BufferPool bufferPool = null;
+	private RateLimiter rateLimiter = null;
+
+	public DownloadOptions() {
+	}
+
+	/**
+	 * Copy of other, e.g. for a job whose shared resources are set by its manager
+	 */
+	DownloadOptions(@NonNull DownloadOptions other) {
+		engineType = other.engineType;
+		schedulerType = other.schedulerType;
+		maxConnections = other.maxConnections;
+		hostConnections = other.hostConnections;
+		pipelining = other.pipelining;
+		compression = other.compression;
+		endgameThreshold = other.endgameThreshold;
+		writerMode = other.writerMode;
+		allocation = other.allocation;
+		writerThreads = other.writerThreads;
+		bufferSize = other.bufferSize;
+		flushSize = other.flushSize;
+		maxDirtyAge = other.maxDirtyAge;
+		journalInterval = other.journalInterval;
+		hashAlgorithm = other.hashAlgorithm;
+		pieceSize = other.pieceSize;
+		manifest = other.manifest;
+		rateLimit = other.rateLimit;
+		bufferPool = other.bufferPool;
+		rateLimiter = other.rateLimiter;
+	}
+
+	@NonNull
+	public Engine.Type getEngineType() {
+		return engineType;
+	}
+
+	/**
+	 * @param engineType {@link Engine.Type#NIO} falls back to threads for other than plain HTTP
+	 */
+	@NonNull
+	public DownloadOptions setEngineType(@NonNull Engine.Type engineType) {
+		this.engineType = engineType;
+		return this;
+	}
+
+	@NonNull
+	public SegmentScheduler.Type getSchedulerType() {
+		return schedulerType;
+	}
+
+	@NonNull
+	public DownloadOptions setSchedulerType(@NonNull SegmentScheduler.Type schedulerType) {
+		this.schedulerType = schedulerType;
+		return this;
+	}
+
+	/**
+	 * @return upper bound of concurrent connections of one download
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	@NonNull
+	public DownloadOptions setMaxConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections < 1");
+		}
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * @return upper bound of concurrent connections to one host across all downloads
+	 */
+	public int getHostConnections() {
+		return hostConnections;
+	}
+
+	@NonNull
+	public DownloadOptions setHostConnections(int hostConnections) {
+		if (hostConnections < 1) {
+			throw new IllegalArgumentException("hostConnections < 1");
+		}
+		this.hostConnections = hostConnections;
+		return this;
+	}
+
+	/**
+	 * @return true when the NIO engine may send the request for the next range before the
+	 * current response ends
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	@NonNull
+	public DownloadOptions setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+		return this;
+	}
+
+	/**
+	 * @return true when the probe may ask for gzip or deflate, a compressed response is then
+	 * decoded as a single stream
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	@NonNull
+	public DownloadOptions setCompression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * @return remaining bytes below which idle connections take over half of segments far
+	 * behind the others, 0 to disable
+	 */
+	public long getEndgameThreshold() {
+		return endgameThreshold;
+	}
+
+	@NonNull
+	public DownloadOptions setEndgameThreshold(long endgameThreshold) {
+		if (endgameThreshold < 0) {
+			throw new IllegalArgumentException("endgameThreshold < 0");
+		}
+		this.endgameThreshold = endgameThreshold;
+		return this;
+	}
+
+	@NonNull
+	public Writer.Mode getWriterMode() {
+		return writerMode;
+	}
+
+	@NonNull
+	public DownloadOptions setWriterMode(@NonNull Writer.Mode writerMode) {
+		this.writerMode = writerMode;
+		return this;
+	}
+
+	@NonNull
+	public Writer.Allocation getAllocation() {
+		return allocation;
+	}
+
+	@NonNull
+	public DownloadOptions setAllocation(@NonNull Writer.Allocation allocation) {
+		this.allocation = allocation;
+		return this;
+	}
+
+	/**
+	 * @return writer threads in {@link Writer.Mode#CHANNEL} mode, 0 for writing on getter threads,
+	 * which the NIO engine raises to 1
+	 */
+	public int getWriterThreads() {
+		return writerThreads;
+	}
+
+	@NonNull
+	public DownloadOptions setWriterThreads(int writerThreads) {
+		if (writerThreads < 0) {
+			throw new IllegalArgumentException("writerThreads < 0");
+		}
+		this.writerThreads = writerThreads;
+		return this;
+	}
+
+	/**
+	 * @return in-memory write buffer budget in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@NonNull
+	public DownloadOptions setBufferSize(int bufferSize) {
+		if (bufferSize < Writer.SLAB_SIZE) {
+			throw new IllegalArgumentException("bufferSize too small");
+		}
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/**
+	 * @return extent size in bytes the write-back cache flushes at, 0 when the cache is disabled
+	 */
+	public int getFlushSize() {
+		return flushSize;
+	}
+
+	@NonNull
+	public DownloadOptions setFlushSize(int flushSize) {
+		if (flushSize < 0) {
+			throw new IllegalArgumentException("flushSize < 0");
+		}
+		this.flushSize = flushSize;
+		return this;
+	}
+
+	/**
+	 * @return milliseconds cached data may stay unwritten
+	 */
+	public long getMaxDirtyAge() {
+		return maxDirtyAge;
+	}
+
+	@NonNull
+	public DownloadOptions setMaxDirtyAge(long maxDirtyAge) {
+		if (maxDirtyAge < 1) {
+			throw new IllegalArgumentException("maxDirtyAge < 1");
+		}
+		this.maxDirtyAge = maxDirtyAge;
+		return this;
+	}
+
+	/**
+	 * @return milliseconds between journal syncs, 0 when downloads are not resumable
+	 */
+	public long getJournalInterval() {
+		return journalInterval;
+	}
+
+	@NonNull
+	public DownloadOptions setJournalInterval(long journalInterval) {
+		if (journalInterval < 0) {
+			throw new IllegalArgumentException("journalInterval < 0");
+		}
+		this.journalInterval = journalInterval;
+		return this;
+	}
+
+	/**
+	 * @return algorithm pieces are hashed with or null when nothing is verified
+	 */
+	@Nullable
+	public Verifier.Algorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	@NonNull
+	public DownloadOptions setHashAlgorithm(@Nullable Verifier.Algorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+		return this;
+	}
+
+	/**
+	 * @return size in bytes of the pieces hashed and refetched as a unit, forks split ranges on
+	 * piece boundaries
+	 */
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	@NonNull
+	public DownloadOptions setPieceSize(int pieceSize) {
+		if (pieceSize < Writer.SLAB_SIZE) {
+			throw new IllegalArgumentException("pieceSize too small");
+		}
+		this.pieceSize = pieceSize;
+		return this;
+	}
+
+	/**
+	 * @return expected digest of every piece in order or null
+	 */
+	@Nullable
+	public List<byte[]> getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * @param manifest expected digests, CRC-32 values as 4 bytes big-endian, a piece that does
+	 *                 not match is fetched again
+	 */
+	@NonNull
+	public DownloadOptions setManifest(@Nullable List<byte[]> manifest) {
+		this.manifest = manifest;
+		return this;
+	}
+
+	/**
+	 * @return bytes per second the download may receive, 0 for unlimited
+	 */
+	public long getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * @param rateLimit bytes per second, 0 for unlimited, may be changed while running with
+	 *                  {@link Download#setRateLimit(long)}
+	 */
+	@NonNull
+	public DownloadOptions setRateLimit(long rateLimit) {
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("rateLimit < 0");
+		}
+		this.rateLimit = rateLimit;
+		return this;
+	}
+
+	/**
+	 * @return pool shared with other downloads or null for a private one of buffer size
+	 */
+	@Nullable
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	@NonNull
+	DownloadOptions setBufferPool(@Nullable BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		return this;
+	}
+
+	/**
+	 * @return limiter shared with other downloads or null
+	 */
+	@Nullable
+	RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	@NonNull
+	DownloadOptions setRateLimiter(@Nullable RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		return this;
+	}
+}
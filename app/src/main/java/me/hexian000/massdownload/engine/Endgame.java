@@ -0,0 +1,254 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tail-end splitting. Once little is left, free connection slots take over the back half of
+ * getters expected to finish far behind the others, so the last bytes do not wait on one slow
+ * connection. The straggler keeps the front half, no byte is fetched twice. A getter that has
+ * stopped receiving is truncated and the racer takes over all of its range.
+ */
+class Endgame {
+	private static final long MINIMAL_RACE = 64 * 1024; // 64 KiB
+	private static final double STRAGGLER_FACTOR = 2.0; // finish time relative to the median rate
+	private static final long STALL_TIME = 2000; // 2 seconds without a byte
+	private static final int RATE_HISTORY = 16; // finished getters kept for the median
+	private final Engine engine;
+	private final Writer writer;
+	private final long threshold;
+	private final List<Race> races;
+	private final Map<Getter, long[]> progress; // {position, since} of alive getters
+	private final ArrayDeque<Double> finishedRates; // last rates of recently finished getters
+	private double medianRate; // bytes per millisecond, last seen with two getters or more
+	private volatile int raceCount;
+	private volatile int racerWins;
+	private volatile long savedTime;
+
+	Endgame(@NonNull Engine engine, @NonNull Writer writer, long threshold) {
+		this.engine = engine;
+		this.writer = writer;
+		this.threshold = threshold;
+		races = new ArrayList<>();
+		progress = new HashMap<>();
+		finishedRates = new ArrayDeque<>();
+		medianRate = 0;
+		raceCount = 0;
+		racerWins = 0;
+		savedTime = 0;
+	}
+
+	/**
+	 * @param getters snapshot of every getter of the download
+	 * @param limit   connections the download may use at the moment
+	 * @return racers started by this call
+	 */
+	@NonNull
+	List<Getter> check(@NonNull List<Getter> getters, int limit) {
+		settle();
+		List<Getter> racers = new ArrayList<>();
+		if (threshold <= 0) {
+			return racers;
+		}
+		track(getters);
+		long remaining = 0;
+		int alive = 0;
+		// finished getters keep their last rate, they show what a connection can do
+		List<Double> rates = new ArrayList<>(finishedRates);
+		for (Getter getter : getters) {
+			if (getter.isAlive()) {
+				remaining += getter.getRemainingSize();
+				alive++;
+				if (getter.getDataRate() > 0) {
+					rates.add(getter.getDataRate());
+				}
+			}
+		}
+		if (rates.size() >= 2) {
+			Collections.sort(rates);
+			medianRate = rates.get(rates.size() / 2);
+		}
+		if (alive == 0 || remaining > threshold || medianRate <= 0) {
+			return racers;
+		}
+		while (alive < limit) {
+			Getter straggler = pickStraggler(getters);
+			if (straggler == null) {
+				break;
+			}
+			final long start = straggler.getPosition();
+			final double time = getFinishTime(straggler);
+			final long[] range;
+			if (Double.isInfinite(time)) {
+				// nothing arrives any more, the racer takes over all of it
+				range = new long[]{start, straggler.getEndPosition()};
+				straggler.truncate();
+			} else {
+				// the straggler now ends where the racer starts, a tail is often below a piece
+				range = straggler.cut(Writer.SLAB_SIZE);
+				if (range == null) {
+					break;
+				}
+			}
+			Getter racer = engine.newGetter(range[0], range[1]);
+			racer.start();
+			races.add(new Race(straggler, racer, range[0], range[1], time));
+			racers.add(racer);
+			raceCount++;
+			alive++;
+			Logger.d("endgame race: " + (range[1] - range[0]) + " of " + (range[1] - start) +
+					" bytes, " + (Double.isInfinite(time) ? "stalled" : (long) time + " ms") +
+					" against " + (long) ((range[1] - start) / medianRate) +
+					" ms at the median rate");
+		}
+		return racers;
+	}
+
+	/**
+	 * A race ends with its racer, a straggler still behind may then be split again
+	 */
+	private void settle() {
+		final long now = System.currentTimeMillis();
+		Iterator<Race> it = races.iterator();
+		while (it.hasNext()) {
+			Race race = it.next();
+			if (race.racer.isAlive()) {
+				continue;
+			}
+			if (writer.isWritten(race.start, race.end)) {
+				if (Double.isInfinite(race.estimate)) {
+					racerWins++; // a stalled straggler might never have finished
+				} else {
+					// when the straggler would have been done, against when it will be now
+					final double left = race.straggler.isAlive() ?
+							getFinishTime(race.straggler) : 0;
+					final long saved = (long) (race.estimate - left) - (now - race.started);
+					if (saved > 0) {
+						savedTime += saved;
+						racerWins++;
+					}
+				}
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Note when each alive getter last moved, its data rate only changes when bytes arrive.
+	 * Getters gone since the last call leave their rate behind, as the download forgets them.
+	 */
+	private void track(List<Getter> getters) {
+		final long now = System.currentTimeMillis();
+		Map<Getter, long[]> alive = new HashMap<>();
+		for (Getter getter : getters) {
+			if (!getter.isAlive()) {
+				continue;
+			}
+			final long position = getter.getPosition();
+			final long[] last = progress.get(getter);
+			alive.put(getter, last != null && last[0] == position ? last :
+					new long[]{position, now});
+		}
+		for (Getter getter : progress.keySet()) {
+			if (!alive.containsKey(getter) && getter.getDataRate() > 0) {
+				if (finishedRates.size() >= RATE_HISTORY) {
+					finishedRates.removeFirst();
+				}
+				finishedRates.addLast(getter.getDataRate());
+			}
+		}
+		progress.clear();
+		progress.putAll(alive);
+	}
+
+	/**
+	 * @return milliseconds until the getter finishes at its data rate, infinite once it has
+	 * stalled, e.g. retrying against a failing server, NaN before it has a data rate
+	 */
+	private double getFinishTime(@NonNull Getter getter) {
+		final long[] last = progress.get(getter);
+		if (last != null && System.currentTimeMillis() - last[1] >= STALL_TIME) {
+			return Double.POSITIVE_INFINITY;
+		}
+		final double rate = getter.getDataRate();
+		return rate > 0 ? getter.getRemainingSize() / rate : Double.NaN;
+	}
+
+	/**
+	 * @return the getter expected to finish last if it needs clearly longer than a connection
+	 * at the median rate would for the same bytes
+	 */
+	private Getter pickStraggler(List<Getter> getters) {
+		Getter straggler = null;
+		double maxTime = 0;
+		for (Getter getter : getters) {
+			if (!getter.isAlive() || getter.getRemainingSize() < MINIMAL_RACE || isRacing(getter)) {
+				continue;
+			}
+			// a getter without a data rate yet has no estimate to compare
+			final double time = getFinishTime(getter);
+			final double expected = getter.getRemainingSize() / medianRate;
+			if (time > expected * STRAGGLER_FACTOR && time > maxTime) {
+				maxTime = time;
+				straggler = getter;
+			}
+		}
+		return straggler;
+	}
+
+	private boolean isRacing(Getter getter) {
+		for (Race race : races) {
+			if (race.straggler == getter || race.racer == getter) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return races started so far
+	 */
+	int getRaceCount() {
+		return raceCount;
+	}
+
+	/**
+	 * @return races after which the range was done before the straggler alone would have been
+	 */
+	int getRacerWins() {
+		return racerWins;
+	}
+
+	/**
+	 * @return milliseconds the stragglers alone would still have needed at their data rate when
+	 * the race started, beyond the time the race took
+	 */
+	long getSavedTime() {
+		return savedTime;
+	}
+
+	private static class Race {
+		final Getter straggler;
+		final Getter racer;
+		final long start; // of the half the racer took
+		final long end;
+		final double estimate; // milliseconds the straggler alone would have needed
+		final long started;
+
+		Race(Getter straggler, Getter racer, long start, long end, double estimate) {
+			this.straggler = straggler;
+			this.racer = racer;
+			this.start = start;
+			this.end = end;
+			this.estimate = estimate;
+			started = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Creates the getters of one download, getters of one engine share its connections and threads
+ */
+public interface Engine {
+	@NonNull
+	Getter newGetter(long start, long end);
+
+	/**
+	 * Release engine resources after all getters have been joined
+	 */
+	void shutdown();
+
+	enum Type {
+		/**
+		 * a thread and a blocking URLConnection per getter
+		 */
+		THREAD,
+		/**
+		 * one selector thread multiplexing non-blocking connections, plain HTTP only
+		 */
+		NIO
+	}
+}
@@ -1,149 +1,98 @@
 package me.hexian000.massdownload.engine;
 
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
-
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.net.URLConnection;
-
-import static me.hexian000.massdownload.DownloadApp.LOG_TAG;
-
-public class Getter extends Thread {
-	private static final int BUFFER_SIZE = 8 * 1024; // 8 KiB
-	private static final int RETRY_COUNT = 3;
-	private static final int RETRY_INTERVAL = 5 * 1000; // 5 seconds
-	private final URL url;
-	private final Writer writer;
-	private long currentPosition;
-	private long endPosition;
-	private boolean healthy;
-	private boolean failed;
-	private BufferedInputStream bufferedInputStream;
-	private long connectCost;
-	private double dataRate;
-
-	Getter(@NonNull URL url, @NonNull Writer writer, long start, long end) {
-		super();
-		this.url = url;
-		currentPosition = start;
-		endPosition = end;
-		this.writer = writer;
-		healthy = false;
-		failed = false;
-		connectCost = -1;
-		dataRate = 0;
-	}
+
+/**
+ * Downloads one byte range into the {@link Writer}. The lifecycle methods mirror
+ * {@link Thread} so that the thread engine can implement them directly.
+ */
+public interface Getter {
+	/**
+	 * End of a range that runs until the end of the stream because the length is unknown, it is
+	 * replaced by the real end once a response or the end of the stream reveals it
+	 */
+	long OPEN_END = Long.MAX_VALUE;
+
+	void start();
+
+	/**
+	 * @return true until the range is finished, failed or the getter is interrupted
+	 */
+	boolean isAlive();
+
+	/**
+	 * Stop downloading as soon as possible
+	 */
+	void interrupt();
+
+	/**
+	 * Wait until the getter is no longer alive
+	 */
+	void join() throws InterruptedException;
 
 	/**
 	 * @return connect time cost in millisecond or -1 when data not available
 	 */
-	public long getConnectCost() {
-		return connectCost;
-	}
+	long getConnectCost();
 
 	/**
 	 * @return data rate in bytes per millisecond
 	 */
-	public double getDataRate() {
-		return dataRate;
-	}
+	double getDataRate();
+
+	/**
+	 * @return bytes handed to the writer since start
+	 */
+	long getReceivedSize();
 
 	/**
 	 * @return size in bytes
 	 */
-	public long getRemainingSize() {
-		return Math.max(endPosition - currentPosition, 0);
-	}
+	long getRemainingSize();
+
+	/**
+	 * @return file offset of the next byte to be handed to the writer
+	 */
+	long getPosition();
 
-	public boolean isHealthy() {
-		return healthy;
-	}
+	/**
+	 * @return file offset where the range ends, exclusive
+	 */
+	long getEndPosition();
+
+	boolean isHealthy();
+
+	/**
+	 * @return true when the getter gave up, the rest of its range then went back to the
+	 * {@link WorkSource} if another getter can take it over
+	 */
+	boolean isFailed();
 
+	/**
+	 * Split the remaining range in half and start a new getter for the upper part
+	 *
+	 * @return the started getter or null when the range is too small
+	 */
 	@Nullable
-	public Getter fork() {
-		long pos = (endPosition - currentPosition) / 2 + currentPosition;
-		pos -= pos % BUFFER_SIZE;
-		if (pos <= currentPosition + BUFFER_SIZE || pos > endPosition) {
-			return null; // too small to fork!
-		}
-		Getter getter = new Getter(url, writer, pos, endPosition);
-		endPosition = pos;
-		getter.start();
-		return getter;
-	}
-
-	public boolean isFailed() {
-		return failed;
-	}
-
-	@Override
-	public void run() {
-		for (int retry = 0; retry < RETRY_COUNT; retry++) {
-			final long oldPos = currentPosition;
-			try {
-				try {
-					if (bufferedInputStream == null) {
-						connect();
-					}
-					download();
-					break;
-				} catch (IOException e) {
-					Log.e(LOG_TAG, "file get error, retry=" + retry, e);
-					healthy = false;
-					Thread.sleep(RETRY_INTERVAL);
-				} finally {
-					if (bufferedInputStream != null) {
-						try {
-							bufferedInputStream.close();
-						} catch (IOException ignored) {
-						} finally {
-							bufferedInputStream = null;
-						}
-					}
-				}
-			} catch (InterruptedException e) {
-				Log.e(LOG_TAG, "writer interrupted", e);
-				break;
-			} finally {
-				if (oldPos < currentPosition) {
-					retry = 0;
-				}
-			}
-		}
-		failed = currentPosition < endPosition;
-	}
-
-	private void connect() throws IOException {
-		long start = System.currentTimeMillis();
-		URLConnection urlConnection = url.openConnection();
-		urlConnection.setRequestProperty("Range",
-				"bytes=" + currentPosition + "-" + endPosition);
-		bufferedInputStream = new BufferedInputStream(urlConnection.getInputStream(), BUFFER_SIZE);
-		connectCost = System.currentTimeMillis() - start;
-	}
-
-	private void download() throws IOException, InterruptedException {
-		byte[] buf = new byte[BUFFER_SIZE];
-		while (currentPosition < endPosition) {
-			if (isInterrupted()) {
-				throw new InterruptedException();
-			}
-			final long start = System.currentTimeMillis();
-			int len = bufferedInputStream.read(buf, 0, BUFFER_SIZE);
-			if (len == -1) {
-				break;
-			} else {
-				dataRate = (double) len / (double) (System.currentTimeMillis() - start);
-				healthy = true;
-				len = (int) Math.min(getRemainingSize(), len);
-				byte[] writeBuf = new byte[len];
-				System.arraycopy(buf, 0, writeBuf, 0, len);
-				writer.write(writeBuf, currentPosition);
-				currentPosition += len;
-			}
-		}
-	}
+	Getter fork();
+
+	/**
+	 * Split the remaining range in half and give up the upper part
+	 *
+	 * @return the {start, end} range given up or null when the range is too small
+	 */
+	@Nullable
+	long[] cut();
+
+	/**
+	 * Like {@link #cut()} but split on a multiple of align instead of the piece size
+	 */
+	@Nullable
+	long[] cut(int align);
+
+	/**
+	 * Give up the rest of the range because another getter has covered it, the getter then
+	 * stops as soon as possible without failing
+	 */
+	void truncate();
 }
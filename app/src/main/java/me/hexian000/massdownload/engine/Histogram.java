@@ -0,0 +1,140 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with four buckets per power of two, so
+ * percentiles are within 25% of the recorded values. Copies in a {@link Metrics.Snapshot} do
+ * not change anymore.
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 2;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+	private final AtomicLongArray counts;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		sum = new LongAdder();
+		max = new AtomicLong(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		final int exp = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return largest value falling into the bucket
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		final int shift = index / SUB_COUNT - 1;
+		final long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+		long old;
+		while (value > (old = max.get()) && !max.compareAndSet(old, value)) {
+			// retry
+		}
+	}
+
+	void add(@NonNull Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			final long n = other.counts.get(i);
+			if (n > 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		sum.add(other.sum.sum());
+		final long value = other.max.get();
+		long old;
+		while (value > (old = max.get()) && !max.compareAndSet(old, value)) {
+			// retry
+		}
+	}
+
+	@NonNull
+	Histogram copy() {
+		Histogram copy = new Histogram();
+		copy.add(this);
+		return copy;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		final long count = getCount();
+		return count > 0 ? (double) getSum() / count : 0;
+	}
+
+	/**
+	 * @param p between 0 and 1
+	 * @return upper bound of the bucket holding the p-th value, 0 when empty
+	 */
+	public long getPercentile(double p) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max((long) Math.ceil(p * count), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Append flat name.key=value fields for {@link Metrics.Snapshot#export()}
+	 */
+	void export(@NonNull StringBuilder out, @NonNull String name) {
+		out.append(String.format(Locale.ROOT, " %1$s.n=%2$d %1$s.mean=%3$.0f %1$s.p50=%4$d" +
+						" %1$s.p90=%5$d %1$s.p99=%6$d %1$s.max=%7$d", name, getCount(), getMean(),
+				getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getMax()));
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "n=%d p50=%d p90=%d p99=%d max=%d", getCount(),
+				getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getMax());
+	}
+}
@@ -0,0 +1,31 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Process-wide limit of concurrent connections per host, shared by all downloads. The limit is
+ * fixed by the first download to a host.
+ */
+final class HostLimiter {
+	private static final Map<String, Semaphore> hosts = new HashMap<>();
+
+	private HostLimiter() {
+	}
+
+	@NonNull
+	static synchronized Semaphore get(@NonNull URL url, int limit) {
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+		Semaphore semaphore = hosts.get(key);
+		if (semaphore == null) {
+			semaphore = new Semaphore(limit, true);
+			hosts.put(key, semaphore);
+		}
+		return semaphore;
+	}
+}
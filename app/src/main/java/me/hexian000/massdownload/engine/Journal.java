@@ -0,0 +1,189 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persistent record of the byte ranges already on disk, kept next to the output file so an
+ * interrupted download can be resumed. The file is a header identifying the content followed by
+ * appended {offset, length} records. Ranges reported by the writer, or by the verifier once their
+ * piece has passed, are merged in memory and only appended by {@link #sync()}, after the data
+ * they describe has been forced to disk.
+ */
+class Journal implements Writer.Listener {
+	private static final int MAGIC = 0x4d444a31; // "MDJ1"
+	private final File file;
+	private final String url;
+	private final long length;
+	private final String etag;
+	private final String lastModified;
+	private final RangeSet completed;
+	private RangeSet pending;
+	private FileOutputStream out;
+
+	Journal(@NonNull File file, @NonNull String url, long length,
+	        @Nullable String etag, @Nullable String lastModified) {
+		this.file = file;
+		this.url = url;
+		this.length = length;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		completed = new RangeSet();
+		pending = new RangeSet();
+	}
+
+	@NonNull
+	static File journalFile(@NonNull File file) {
+		return new File(file.getPath() + ".mdj");
+	}
+
+	/**
+	 * Load ranges from an existing journal if it describes the same content, then rewrite it
+	 * compacted. A journal for other content is discarded.
+	 *
+	 * @param resume false when the output file is known to be unusable
+	 * @return ranges already downloaded
+	 */
+	@NonNull
+	RangeSet open(boolean resume) throws IOException {
+		if (resume && file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				Logger.w("journal discarded", e);
+				completed.clear();
+			}
+		}
+		out = new FileOutputStream(file);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeUTF(url);
+		data.writeLong(length);
+		data.writeUTF(etag == null ? "" : etag);
+		data.writeUTF(lastModified == null ? "" : lastModified);
+		writeRanges(data, completed.toList());
+		data.flush();
+		out.getFD().sync();
+		return completed;
+	}
+
+	private void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("bad journal magic");
+			}
+			final String url = in.readUTF();
+			final long length = in.readLong();
+			final String etag = in.readUTF();
+			final String lastModified = in.readUTF();
+			if (!this.url.equals(url) || this.length != length) {
+				throw new IOException("journal is for another file");
+			}
+			// a validator the server does not send any more cannot prove anything
+			if (!etag.equals(this.etag == null ? "" : this.etag) ||
+					!lastModified.equals(this.lastModified == null ? "" : this.lastModified)) {
+				throw new IOException("remote file changed");
+			}
+			while (true) {
+				final long offset;
+				final long len;
+				try {
+					offset = in.readLong();
+					len = in.readLong();
+				} catch (EOFException e) {
+					break; // possibly a torn record at the tail
+				}
+				if (offset < 0 || len < 0 || offset + len > length) {
+					throw new IOException("corrupted journal record");
+				}
+				completed.add(offset, offset + len);
+			}
+		}
+		Logger.d("journal loaded: " + completed.size() + " bytes completed");
+	}
+
+	private static void writeRanges(DataOutputStream data, List<long[]> ranges)
+			throws IOException {
+		for (long[] range : ranges) {
+			data.writeLong(range[0]);
+			data.writeLong(range[1] - range[0]);
+		}
+	}
+
+	@Override
+	public void onPersisted(long offset, long length) {
+		synchronized (this) {
+			pending.add(offset, offset + length);
+		}
+		completed.add(offset, offset + length);
+	}
+
+	/**
+	 * Force written data to disk, then make the ranges reported so far durable
+	 */
+	void sync(@NonNull Writer writer) throws IOException {
+		RangeSet ranges = swap();
+		if (ranges.isEmpty()) {
+			return;
+		}
+		writer.sync();
+		append(ranges);
+	}
+
+	private synchronized RangeSet swap() {
+		RangeSet ranges = pending;
+		pending = new RangeSet();
+		return ranges;
+	}
+
+	private synchronized void append(RangeSet ranges) throws IOException {
+		if (out == null) {
+			return;
+		}
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		writeRanges(data, ranges.toList());
+		data.flush();
+		out.getFD().sync();
+	}
+
+	/**
+	 * Append the remaining ranges, the writer must have been closed
+	 */
+	synchronized void close() {
+		if (out == null) {
+			return;
+		}
+		try {
+			append(swap());
+			out.close();
+		} catch (IOException e) {
+			Logger.e("journal close error", e);
+		}
+		out = null;
+	}
+
+	synchronized void delete() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ignored) {
+			}
+			out = null;
+		}
+		if (file.exists() && !file.delete()) {
+			Logger.e("failed deleting journal");
+		}
+	}
+}
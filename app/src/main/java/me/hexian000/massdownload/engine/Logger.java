@@ -0,0 +1,59 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Logging facade of the engine so that it builds without Android. Messages go to the sink set
+ * by the host, the app forwards them to logcat, and are dropped while no sink is set.
+ */
+public final class Logger {
+	// same values as android.util.Log
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	private static volatile Sink sink = null;
+
+	private Logger() {
+	}
+
+	public static void setSink(@Nullable Sink sink) {
+		Logger.sink = sink;
+	}
+
+	static void d(@NonNull String msg) {
+		log(DEBUG, msg, null);
+	}
+
+	static void i(@NonNull String msg) {
+		log(INFO, msg, null);
+	}
+
+	static void w(@NonNull String msg) {
+		log(WARN, msg, null);
+	}
+
+	static void w(@NonNull String msg, @Nullable Throwable tr) {
+		log(WARN, msg, tr);
+	}
+
+	static void e(@NonNull String msg) {
+		log(ERROR, msg, null);
+	}
+
+	static void e(@NonNull String msg, @Nullable Throwable tr) {
+		log(ERROR, msg, tr);
+	}
+
+	private static void log(int priority, @NonNull String msg, @Nullable Throwable tr) {
+		final Sink sink = Logger.sink;
+		if (sink != null) {
+			sink.log(priority, msg, tr);
+		}
+	}
+
+	public interface Sink {
+		void log(int priority, @NonNull String msg, @Nullable Throwable tr);
+	}
+}
@@ -0,0 +1,164 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Getters copy received data straight into windows of the memory-mapped file on their own
+ * threads. A window is forced to disk and dropped once its whole range has been written, the
+ * mapping itself goes away when the buffer is collected since there is no explicit unmap.
+ * NIO getters hand their blocks to one writer thread instead, as a page fault on the mapping
+ * would stall the selector.
+ */
+class MappedWriter extends Writer {
+	private static final int WINDOW_SIZE = 32 * 1024 * 1024; // 32 MiB
+	private final long length;
+	private final AtomicReferenceArray<Window> windows;
+	@Nullable
+	private final WriterThread thread;
+
+	MappedWriter(@NonNull DownloadOptions options, @NonNull File file, long length)
+			throws IOException {
+		super(options, file, length);
+		this.length = length;
+		windows = new AtomicReferenceArray<>((int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE));
+		if (options.getEngineType() == Engine.Type.NIO) {
+			thread = new WriterThread(1, false); // a cache would bypass the mapping
+		} else {
+			thread = null;
+		}
+	}
+
+	@Override
+	void submit(@NonNull ByteBuffer data, long offset) throws IOException, InterruptedException {
+		if (thread != null) {
+			thread.put(data, offset);
+			return;
+		}
+		final int length = data.remaining();
+		final long begin = System.nanoTime();
+		try {
+			persist(data, offset);
+		} catch (IOException e) {
+			pool.release(data);
+			throw e;
+		}
+		retire(data, offset, length);
+		persisted(offset, length, begin);
+	}
+
+	@Override
+	void persist(@NonNull ByteBuffer data, long offset) throws IOException {
+		while (data.hasRemaining()) {
+			final int index = (int) (offset / WINDOW_SIZE);
+			final Window window = getWindow(index);
+			final int pos = (int) (offset - (long) index * WINDOW_SIZE);
+			final int len = Math.min(data.remaining(), window.size - pos);
+			final ByteBuffer dst = window.buffer.duplicate();
+			dst.position(pos);
+			final int limit = data.limit();
+			data.limit(data.position() + len);
+			try {
+				dst.put(data);
+			} catch (InternalError e) {
+				// a page the filesystem cannot back, e.g. when the disk is full
+				throw new IOException("mapped write failed", e);
+			} finally {
+				data.limit(limit);
+			}
+			offset += len;
+			if (window.complete(len)) {
+				window.buffer.force();
+				windows.set(index, null);
+			}
+		}
+	}
+
+	private Window getWindow(int index) throws IOException {
+		Window window = windows.get(index);
+		if (window != null) {
+			return window;
+		}
+		synchronized (windows) {
+			window = windows.get(index);
+			if (window == null) {
+				final long start = (long) index * WINDOW_SIZE;
+				window = new Window(channel.map(FileChannel.MapMode.READ_WRITE, start,
+						Math.min(WINDOW_SIZE, length - start)));
+				windows.set(index, window);
+			}
+		}
+		return window;
+	}
+
+	@Override
+	public void sync() {
+		for (int i = 0; i < windows.length(); i++) {
+			Window window = windows.get(i);
+			if (window != null) {
+				window.buffer.force();
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		if (thread != null) {
+			thread.start();
+		}
+	}
+
+	@Override
+	int getQueueDepth() {
+		return thread == null ? 0 : thread.getDepth();
+	}
+
+	@Override
+	void flush() throws InterruptedException {
+		if (thread != null) {
+			thread.drain();
+		}
+	}
+
+	@Override
+	void shutdown() throws InterruptedException {
+		if (thread != null) {
+			thread.finish();
+			thread.join();
+		}
+		for (int i = 0; i < windows.length(); i++) {
+			Window window = windows.getAndSet(i, null);
+			if (window != null) {
+				window.buffer.force();
+			}
+		}
+		Logger.d("mapped windows forced");
+	}
+
+	private static class Window {
+		final MappedByteBuffer buffer;
+		final int size;
+		private int written;
+
+		Window(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			size = buffer.capacity();
+			written = 0;
+		}
+
+		/**
+		 * @return true when this call completed the window
+		 */
+		synchronized boolean complete(int len) {
+			written += len;
+			return written >= size;
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one download. Getters and the writer record into it from
+ * their own threads without locks, {@link Download#getMetrics()} takes a snapshot to poll or to
+ * export as text. Latencies are in microseconds.
+ */
+public final class Metrics {
+	private final long since;
+	private final AtomicInteger nextId;
+	private final List<Probe> probes; // running getters, finished ones are folded into totals
+	private final Histogram finishedStall; // totals guarded by probes
+	private long finishedReceived;
+	private int finishedRetries;
+	private int finishedForks;
+	private final Histogram connect;
+	private final Histogram firstByte;
+	private final Histogram writeLatency;
+	private final Histogram obtainWait;
+	private final LongAdder received;
+	private final LongAdder written;
+	private final AtomicLong firstWrite; // nanoTime, 0 before
+	private volatile long allocation;
+	private volatile long start; // nanoTime, 0 before
+
+	Metrics() {
+		since = System.currentTimeMillis();
+		nextId = new AtomicInteger(1);
+		probes = new ArrayList<>();
+		finishedStall = new Histogram();
+		finishedReceived = 0;
+		finishedRetries = 0;
+		finishedForks = 0;
+		connect = new Histogram();
+		firstByte = new Histogram();
+		writeLatency = new Histogram();
+		obtainWait = new Histogram();
+		received = new LongAdder();
+		written = new LongAdder();
+		firstWrite = new AtomicLong(0);
+		allocation = -1;
+		start = 0;
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	@NonNull
+	Probe newProbe(@NonNull Getter getter, @NonNull String host) {
+		Probe probe = new Probe(nextId.getAndIncrement(), getter, host);
+		synchronized (probes) {
+			probes.add(probe);
+		}
+		return probe;
+	}
+
+	/**
+	 * Fold the counters of a finished getter into the totals, so a long download with many
+	 * short connections keeps only the running ones
+	 */
+	private void fold(@NonNull Probe probe) {
+		synchronized (probes) {
+			if (!probes.remove(probe)) {
+				return;
+			}
+			finishedStall.add(probe.stall);
+			finishedReceived += probe.getter.getReceivedSize();
+			finishedRetries += probe.retries.get();
+			finishedForks += probe.forks.get();
+		}
+	}
+
+	/**
+	 * The output file has been opened and allocated
+	 */
+	void allocated(long nanos) {
+		allocation = micros(nanos);
+	}
+
+	/**
+	 * The download has started its getters
+	 */
+	void started() {
+		start = System.nanoTime();
+	}
+
+	/**
+	 * A getter waited for a buffer from the pool, 0 when one was free
+	 */
+	void obtained(long nanos) {
+		obtainWait.record(micros(nanos));
+	}
+
+	/**
+	 * The writer handed length bytes to the file
+	 */
+	void persisted(long length, long nanos) {
+		if (firstWrite.get() == 0) {
+			firstWrite.compareAndSet(0, System.nanoTime());
+		}
+		written.add(length);
+		writeLatency.record(micros(nanos));
+	}
+
+	/**
+	 * @return bytes handed on by all getters, a sum of counters without a snapshot
+	 */
+	long getReceivedSize() {
+		return received.sum();
+	}
+
+	/**
+	 * @param queueDepth  blocks waiting for writer threads
+	 * @param leasedSlabs buffers held by getters, writer queues and the verifier
+	 */
+	@NonNull
+	Snapshot snapshot(int queueDepth, int leasedSlabs) {
+		return new Snapshot(this, queueDepth, leasedSlabs);
+	}
+
+	/**
+	 * Recorder of one getter. Most counters are written by the thread running the getter, forks
+	 * by whichever thread cut its {@link Segment}, which takes no lock, so every counter is
+	 * atomic or volatile on its own.
+	 */
+	final class Probe {
+		private final int id;
+		private final Getter getter;
+		private final String host;
+		private final Histogram stall;
+		private final AtomicInteger retries;
+		private final AtomicInteger forks;
+		private volatile long connectLatency;
+		private volatile long firstByteLatency;
+
+		private Probe(int id, @NonNull Getter getter, @NonNull String host) {
+			this.id = id;
+			this.getter = getter;
+			this.host = host;
+			stall = new Histogram();
+			retries = new AtomicInteger(0);
+			forks = new AtomicInteger(0);
+			connectLatency = -1;
+			firstByteLatency = -1;
+		}
+
+		/**
+		 * The connection is established, near zero when a keep-alive connection was reused
+		 */
+		void connected(long nanos) {
+			connectLatency = micros(nanos);
+			connect.record(connectLatency);
+		}
+
+		/**
+		 * The response header arrived, counted from the start of the request including connect
+		 */
+		void responded(long nanos) {
+			firstByteLatency = micros(nanos);
+			firstByte.record(firstByteLatency);
+		}
+
+		/**
+		 * Time since the previous read returned data
+		 */
+		void stalled(long nanos) {
+			stall.record(micros(nanos));
+		}
+
+		/**
+		 * The getter handed length bytes on to the writer or the decoder
+		 */
+		void received(int length) {
+			received.add(length);
+		}
+
+		void retried() {
+			retries.incrementAndGet();
+		}
+
+		void forked() {
+			forks.incrementAndGet();
+		}
+
+		/**
+		 * The getter has stopped for good, its counters move into the download totals
+		 */
+		void finished() {
+			fold(this);
+		}
+	}
+
+	/**
+	 * Values of one getter at the time of a snapshot
+	 */
+	public static final class Connection {
+		private final int id;
+		private final String host;
+		private final boolean alive;
+		private final long received;
+		private final long connectLatency;
+		private final long firstByteLatency;
+		private final int retries;
+		private final int forks;
+		private final Histogram stall;
+
+		private Connection(@NonNull Probe probe) {
+			id = probe.id;
+			host = probe.host;
+			alive = probe.getter.isAlive();
+			received = probe.getter.getReceivedSize();
+			connectLatency = probe.connectLatency;
+			firstByteLatency = probe.firstByteLatency;
+			retries = probe.retries.get();
+			forks = probe.forks.get();
+			stall = probe.stall.copy();
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		@NonNull
+		public String getHost() {
+			return host;
+		}
+
+		public boolean isAlive() {
+			return alive;
+		}
+
+		/**
+		 * @return bytes handed to the writer
+		 */
+		public long getReceivedSize() {
+			return received;
+		}
+
+		/**
+		 * @return latest connect latency or -1 before the first connection
+		 */
+		public long getConnectLatency() {
+			return connectLatency;
+		}
+
+		/**
+		 * @return latest time to the response header or -1 before the first response
+		 */
+		public long getFirstByteLatency() {
+			return firstByteLatency;
+		}
+
+		public int getRetryCount() {
+			return retries;
+		}
+
+		/**
+		 * @return times the range was split for another getter
+		 */
+		public int getForkCount() {
+			return forks;
+		}
+
+		/**
+		 * @return time between reads returning data
+		 */
+		@NonNull
+		public Histogram getReadStall() {
+			return stall;
+		}
+
+		private void export(@NonNull StringBuilder out) {
+			out.append(String.format(Locale.ROOT,
+					"connection id=%d host=%s alive=%b received=%d connect=%d first_byte=%d" +
+							" retries=%d forks=%d", id, host, alive, received, connectLatency,
+					firstByteLatency, retries, forks));
+			stall.export(out, "stall");
+		}
+	}
+
+	public static final class Snapshot {
+		private final long time;
+		private final long since;
+		private final long received;
+		private final long written;
+		private final int retries;
+		private final int forks;
+		private final int started;
+		private final int queueDepth;
+		private final int leasedSlabs;
+		private final long allocation;
+		private final long startup;
+		private final Histogram connect;
+		private final Histogram firstByte;
+		private final Histogram readStall;
+		private final Histogram writeLatency;
+		private final Histogram obtainWait;
+		private final List<Connection> connections;
+
+		private Snapshot(@NonNull Metrics metrics, int queueDepth, int leasedSlabs) {
+			time = System.currentTimeMillis();
+			since = metrics.since;
+			this.queueDepth = queueDepth;
+			this.leasedSlabs = leasedSlabs;
+			allocation = metrics.allocation;
+			final long first = metrics.firstWrite.get();
+			startup = metrics.start == 0 || first == 0 ? -1 : micros(first - metrics.start);
+			List<Connection> connections = new ArrayList<>();
+			readStall = new Histogram();
+			long received;
+			int retries;
+			int forks;
+			synchronized (metrics.probes) {
+				readStall.add(metrics.finishedStall);
+				received = metrics.finishedReceived;
+				retries = metrics.finishedRetries;
+				forks = metrics.finishedForks;
+				for (Probe probe : metrics.probes) {
+					final Connection connection = new Connection(probe);
+					connections.add(connection);
+					readStall.add(connection.stall);
+					received += connection.received;
+					retries += connection.retries;
+					forks += connection.forks;
+				}
+			}
+			started = metrics.nextId.get() - 1;
+			this.connections = Collections.unmodifiableList(connections);
+			this.received = received;
+			this.retries = retries;
+			this.forks = forks;
+			written = metrics.written.sum();
+			connect = metrics.connect.copy();
+			firstByte = metrics.firstByte.copy();
+			writeLatency = metrics.writeLatency.copy();
+			obtainWait = metrics.obtainWait.copy();
+		}
+
+		/**
+		 * @return wall clock time of the snapshot in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return bytes handed to the writer by all getters, including duplicates
+		 */
+		public long getReceivedSize() {
+			return received;
+		}
+
+		/**
+		 * @return bytes handed to the file by the writer
+		 */
+		public long getWrittenSize() {
+			return written;
+		}
+
+		/**
+		 * @return bytes per second received since the previous snapshot, or since the start
+		 */
+		public double getReceiveRate(@Nullable Snapshot previous) {
+			return previous == null ? rate(received, 0, since) :
+					rate(received, previous.received, previous.time);
+		}
+
+		/**
+		 * @return bytes per second written since the previous snapshot, or since the start
+		 */
+		public double getWriteRate(@Nullable Snapshot previous) {
+			return previous == null ? rate(written, 0, since) :
+					rate(written, previous.written, previous.time);
+		}
+
+		private double rate(long bytes, long before, long start) {
+			final long elapsed = time - start;
+			return elapsed > 0 ? (bytes - before) * 1000.0 / elapsed : 0;
+		}
+
+		public int getRetryCount() {
+			return retries;
+		}
+
+		public int getForkCount() {
+			return forks;
+		}
+
+		/**
+		 * @return getters started so far, finished or not
+		 */
+		public int getStartedCount() {
+			return started;
+		}
+
+		/**
+		 * @return blocks waiting for writer threads
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * @return buffers not in the pool
+		 */
+		public int getLeasedSlabs() {
+			return leasedSlabs;
+		}
+
+		/**
+		 * @return time to open and allocate the output file or -1 when unknown
+		 */
+		public long getAllocationTime() {
+			return allocation;
+		}
+
+		/**
+		 * @return time from start until the first bytes were handed to the file or -1 before
+		 */
+		public long getStartupTime() {
+			return startup;
+		}
+
+		@NonNull
+		public Histogram getConnectLatency() {
+			return connect;
+		}
+
+		@NonNull
+		public Histogram getFirstByteLatency() {
+			return firstByte;
+		}
+
+		/**
+		 * @return read stalls of all getters together
+		 */
+		@NonNull
+		public Histogram getReadStall() {
+			return readStall;
+		}
+
+		/**
+		 * @return time from handing a block to the file until the call returned
+		 */
+		@NonNull
+		public Histogram getWriteLatency() {
+			return writeLatency;
+		}
+
+		/**
+		 * @return time getters waited for a free buffer
+		 */
+		@NonNull
+		public Histogram getObtainWait() {
+			return obtainWait;
+		}
+
+		/**
+		 * @return getters still running, in order, finished ones only count in the totals
+		 */
+		@NonNull
+		public List<Connection> getConnections() {
+			return connections;
+		}
+
+		/**
+		 * @return one line of key=value fields for the download and one per running connection
+		 */
+		@NonNull
+		public String export() {
+			StringBuilder out = new StringBuilder();
+			out.append(String.format(Locale.ROOT,
+					"download elapsed=%d received=%d written=%d receive_rate=%.0f" +
+							" write_rate=%.0f retries=%d forks=%d connections=%d queue=%d" +
+							" leased=%d allocation=%d startup=%d", time - since, received, written,
+					getReceiveRate(null), getWriteRate(null), retries, forks, started,
+					queueDepth, leasedSlabs, allocation, startup));
+			connect.export(out, "connect");
+			firstByte.export(out, "first_byte");
+			readStall.export(out, "stall");
+			writeLatency.export(out, "write");
+			obtainWait.export(out, "obtain");
+			for (Connection connection : connections) {
+				out.append('\n');
+				connection.export(out);
+			}
+			return out.toString();
+		}
+	}
+}
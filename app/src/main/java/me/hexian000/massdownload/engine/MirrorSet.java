@@ -0,0 +1,255 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sources of one download, each with its own engine, sharing one {@link Writer}. New
+ * getters go to the source expected to finish the range first, judged by the measured
+ * per-connection throughput and connect cost. A source whose getter failed or which crawls far
+ * behind the best one is quarantined for a while: it gets no new ranges and its connections stop
+ * taking more work, so ranges its failed getters hand back move to another source.
+ */
+class MirrorSet implements Engine, WorkSource {
+	private static final double ALPHA = 0.3;
+	private static final double CRAWL_RATIO = 0.2;
+	private static final long QUARANTINE = 30 * 1000; // 30 seconds
+	private static final long MAX_QUARANTINE = 5 * 60 * 1000; // 5 minutes
+	private final WorkSource source;
+	private final List<Mirror> mirrors;
+	private final Map<Getter, Mirror> owners;
+
+	/**
+	 * @param source where getters of any source take more work from
+	 */
+	MirrorSet(@NonNull WorkSource source) {
+		this.source = source;
+		mirrors = new ArrayList<>();
+		owners = new IdentityHashMap<>();
+	}
+
+	/**
+	 * @param connectCost milliseconds the validating request took
+	 */
+	synchronized void add(@NonNull URL url, @NonNull Engine engine, long connectCost) {
+		mirrors.add(new Mirror(url, engine, connectCost));
+	}
+
+	synchronized int size() {
+		return mirrors.size();
+	}
+
+	/**
+	 * @return sources not in quarantine
+	 */
+	synchronized int getUsableCount() {
+		final long now = System.currentTimeMillis();
+		int usable = 0;
+		for (Mirror mirror : mirrors) {
+			if (!mirror.isQuarantined(now)) {
+				usable++;
+			}
+		}
+		return usable;
+	}
+
+	@NonNull
+	@Override
+	public synchronized Getter newGetter(long start, long end) {
+		final long now = System.currentTimeMillis();
+		Mirror best = pick(now, end - start);
+		if (best == null) {
+			// everything is quarantined, use the source released first
+			for (Mirror mirror : mirrors) {
+				if (best == null || mirror.quarantinedUntil < best.quarantinedUntil) {
+					best = mirror;
+				}
+			}
+		}
+		return place(best, start, end);
+	}
+
+	/**
+	 * Count a getter created outside of the engines as one of the first source
+	 */
+	synchronized void adopt(@NonNull Getter getter) {
+		final Mirror mirror = mirrors.get(0);
+		mirror.getters.add(getter);
+		owners.put(getter, mirror);
+	}
+
+	@Nullable
+	@Override
+	public long[] steal(@NonNull Getter thief) {
+		synchronized (this) {
+			final Mirror mirror = owners.get(thief);
+			if (mirror != null && mirror.isQuarantined(System.currentTimeMillis())) {
+				return null; // let the connection to a bad source retire
+			}
+		}
+		return source.steal(thief);
+	}
+
+	/**
+	 * @return true when a usable source other than the getter's own could take its range
+	 */
+	synchronized boolean hasAlternative(@NonNull Getter getter) {
+		final long now = System.currentTimeMillis();
+		final Mirror own = owners.get(getter);
+		for (Mirror mirror : mirrors) {
+			if (mirror != own && !mirror.isQuarantined(now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean giveBack(long start, long end) {
+		return source.giveBack(start, end);
+	}
+
+	/**
+	 * Measure the sources and quarantine bad ones
+	 */
+	synchronized void update(long now) {
+		// a single source has nowhere else to go
+		final boolean spare = mirrors.size() > 1;
+		double bestRate = 0;
+		for (Mirror mirror : mirrors) {
+			if (mirror.quarantinedUntil != 0 && now >= mirror.quarantinedUntil) {
+				mirror.quarantinedUntil = 0;
+				mirror.rate = -1; // measure again
+				Logger.d("mirror released: " + mirror.url.getHost());
+			}
+			double rate = 0;
+			int healthy = 0;
+			boolean failed = false;
+			Iterator<Getter> it = mirror.getters.iterator();
+			while (it.hasNext()) {
+				Getter getter = it.next();
+				if (getter.isAlive()) {
+					if (getter.isHealthy()) {
+						rate += getter.getDataRate();
+						healthy++;
+					}
+					continue;
+				}
+				if (spare && getter.isFailed()) {
+					failed = true;
+				}
+				it.remove();
+				owners.remove(getter);
+			}
+			if (healthy > 0) {
+				final double sample = rate / healthy;
+				mirror.rate = mirror.rate < 0 ? sample :
+						ALPHA * sample + (1 - ALPHA) * mirror.rate;
+			}
+			if (failed) {
+				quarantine(mirror, now, "failed");
+			}
+			if (!mirror.isQuarantined(now) && mirror.rate > bestRate) {
+				bestRate = mirror.rate;
+			}
+		}
+		for (Mirror mirror : mirrors) {
+			if (!mirror.isQuarantined(now) && !mirror.getters.isEmpty() &&
+					mirror.rate >= 0 && mirror.rate < bestRate * CRAWL_RATIO) {
+				quarantine(mirror, now, "crawling");
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		List<Mirror> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<>(mirrors);
+		}
+		for (Mirror mirror : snapshot) {
+			mirror.engine.shutdown();
+		}
+	}
+
+	private void quarantine(@NonNull Mirror mirror, long now, @NonNull String reason) {
+		mirror.strikes++;
+		final long period = Math.min(QUARANTINE << Math.min(mirror.strikes - 1, 4),
+				MAX_QUARANTINE);
+		mirror.quarantinedUntil = now + period;
+		Logger.w("mirror " + reason + ": " + mirror.url.getHost() + ", quarantined for " +
+				period / 1000 + "s");
+	}
+
+	/**
+	 * @return the usable source expected to finish the range first, or null if none is usable
+	 */
+	@Nullable
+	private Mirror pick(long now, long size) {
+		Mirror best = null;
+		double bestTime = Double.MAX_VALUE;
+		for (Mirror mirror : mirrors) {
+			if (mirror.isQuarantined(now)) {
+				continue;
+			}
+			if (mirror.getters.isEmpty() && mirror.rate < 0) {
+				// never tried, measure it before trusting the others
+				if (best == null || best.rate >= 0 || !best.getters.isEmpty() ||
+						mirror.connectCost < best.connectCost) {
+					best = mirror;
+				}
+				continue;
+			}
+			if (best != null && best.getters.isEmpty() && best.rate < 0) {
+				continue;
+			}
+			// busy but not measured yet sorts after every measured source
+			final double time = mirror.rate > 0 ? mirror.connectCost + size / mirror.rate :
+					Double.MAX_VALUE;
+			if (best == null || time < bestTime) {
+				best = mirror;
+				bestTime = time;
+			}
+		}
+		return best;
+	}
+
+	@NonNull
+	private Getter place(@NonNull Mirror mirror, long start, long end) {
+		Getter getter = mirror.engine.newGetter(start, end);
+		mirror.getters.add(getter);
+		owners.put(getter, mirror);
+		return getter;
+	}
+
+	private static class Mirror {
+		final URL url;
+		final Engine engine;
+		final long connectCost;
+		final List<Getter> getters;
+		double rate; // bytes per millisecond per connection, -1 when not measured
+		long quarantinedUntil;
+		int strikes;
+
+		Mirror(URL url, Engine engine, long connectCost) {
+			this.url = url;
+			this.engine = engine;
+			this.connectCost = connectCost;
+			getters = new ArrayList<>();
+			rate = -1;
+			quarantinedUntil = 0;
+			strikes = 0;
+		}
+
+		boolean isQuarantined(long now) {
+			return now < quarantinedUntil;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A single selector thread driving every getter of a download over non-blocking sockets, so
+ * the number of ranges in flight is no longer bound to the number of threads. Speaks plain
+ * HTTP/1.1 to the address resolved at creation and does not follow redirects. Keep-alive
+ * connections are reused by getters taking more work and parked for new forks otherwise, the
+ * request for the next range is pipelined about one round trip before a response ends.
+ */
+class NioEngine extends Thread implements Engine {
+	private static final long SELECT_TIMEOUT = 100; // milliseconds
+	private static final long PAUSED_TIMEOUT = 10; // milliseconds
+	private static final long IDLE_TIMEOUT = 30 * 1000; // 30 seconds
+	final Writer writer;
+	final MirrorSet mirrors;
+	final Metrics metrics;
+	final RateLimiter limiter;
+	final Semaphore permits;
+	final int forkAlign;
+	final boolean pipelining;
+	final InetSocketAddress address;
+	final String host;
+	final String path;
+	private final Selector selector;
+	private final Queue<NioGetter> registrations;
+	private final List<NioGetter> getters; // selector thread only
+	private final Deque<SelectionKey> idle; // selector thread only
+	private long rtt; // selector thread only, nanoseconds
+	private int receiveBuffer; // selector thread only
+	private volatile boolean running;
+
+	NioEngine(@NonNull URL url, @NonNull Writer writer, @NonNull MirrorSet mirrors,
+	          @NonNull Metrics metrics, @NonNull RateLimiter limiter,
+	          @NonNull DownloadOptions options) throws IOException {
+		super();
+		if (!"http".equals(url.getProtocol())) {
+			throw new IOException("unsupported protocol: " + url.getProtocol());
+		}
+		this.writer = writer;
+		this.mirrors = mirrors;
+		this.metrics = metrics;
+		this.limiter = limiter;
+		permits = HostLimiter.get(url, options.getHostConnections());
+		forkAlign = options.getPieceSize();
+		pipelining = options.isPipelining();
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		address = new InetSocketAddress(url.getHost(), port); // resolve off the selector thread
+		if (address.isUnresolved()) {
+			throw new IOException("unresolved host: " + url.getHost());
+		}
+		host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + port;
+		path = url.getFile().isEmpty() ? "/" : url.getFile();
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<>();
+		getters = new ArrayList<>();
+		idle = new ArrayDeque<>();
+		running = true;
+	}
+
+	@NonNull
+	@Override
+	public Getter newGetter(long start, long end) {
+		return new NioGetter(this, start, end);
+	}
+
+	synchronized void register(@NonNull NioGetter getter) {
+		if (!running) {
+			throw new IllegalStateException("engine has been shut down");
+		}
+		registrations.add(getter);
+		if (getState() == State.NEW) {
+			start();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Park a keep-alive connection whose response has been fully consumed
+	 */
+	void putIdle(@NonNull SelectionKey key) {
+		key.attach(System.currentTimeMillis());
+		key.interestOps(SelectionKey.OP_READ); // readable means closed by the server
+		idle.push(key);
+	}
+
+	/**
+	 * @return the most recently parked connection or null
+	 */
+	SelectionKey takeIdle() {
+		SelectionKey key;
+		while ((key = idle.poll()) != null) {
+			if (key.isValid()) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private void closeIdle(SelectionKey key) {
+		idle.remove(key);
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * @return latest handshake time of a connection to this host in nanoseconds, 0 if none
+	 */
+	long getRtt() {
+		return rtt;
+	}
+
+	void setRtt(long rtt) {
+		this.rtt = rtt;
+	}
+
+	/**
+	 * @return receive buffer size in bytes for new connections, 0 to leave it to the system
+	 */
+	int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	void setReceiveBuffer(int size) {
+		receiveBuffer = size;
+	}
+
+	@NonNull
+	Selector getSelector() {
+		return selector;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				NioGetter getter;
+				while ((getter = registrations.poll()) != null) {
+					getters.add(getter);
+					getter.connect();
+				}
+				boolean paused = false;
+				final long now = System.currentTimeMillis();
+				Iterator<NioGetter> it = getters.iterator();
+				while (it.hasNext()) {
+					getter = it.next();
+					getter.tick(now);
+					if (!getter.isAlive()) {
+						it.remove();
+					} else if (getter.isPaused()) {
+						paused = true;
+					}
+				}
+				Iterator<SelectionKey> idleKeys = idle.iterator();
+				while (idleKeys.hasNext()) {
+					SelectionKey key = idleKeys.next();
+					if (now - (Long) key.attachment() >= IDLE_TIMEOUT) {
+						idleKeys.remove();
+						closeIdle(key);
+					}
+				}
+				selector.select(paused ? PAUSED_TIMEOUT : SELECT_TIMEOUT);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.attachment() instanceof NioGetter) {
+						((NioGetter) key.attachment()).handle(key);
+					} else {
+						closeIdle(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Logger.e("selector error", e);
+		} finally {
+			for (NioGetter getter : getters) {
+				getter.interrupt();
+				getter.tick(System.currentTimeMillis());
+			}
+			NioGetter getter;
+			while ((getter = registrations.poll()) != null) {
+				getter.interrupt();
+				getter.tick(System.currentTimeMillis());
+			}
+			SelectionKey key;
+			while ((key = idle.poll()) != null) {
+				closeIdle(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			running = false;
+			if (getState() == State.NEW) {
+				try {
+					selector.close();
+				} catch (IOException ignored) {
+				}
+				return;
+			}
+		}
+		selector.wakeup();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Logger.e("engine shutdown interrupted", e);
+		}
+	}
+}
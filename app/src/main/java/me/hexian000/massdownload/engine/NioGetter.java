@@ -0,0 +1,899 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Getter state machine driven by the {@link NioEngine} selector thread. Only the public
+ * {@link Getter} methods may be called from other threads.
+ */
+class NioGetter implements Getter {
+	private static final int HEADER_SIZE = 8 * 1024; // 8 KiB
+	private static final int DRAIN_LIMIT = 256 * 1024; // 256 KiB
+	private static final int PERMIT_INTERVAL = 200; // milliseconds
+	private static final int MIN_RECEIVE_BUFFER = 16 * 1024; // 16 KiB
+	private static final int MAX_READ = 1024 * 1024; // 1 MiB
+	private static final long RATE_WINDOW = 100 * 1000000L; // 100 ms in nanoseconds
+	private static final double RATE_ALPHA = 0.3;
+	private final NioEngine engine;
+	private final CountDownLatch finished;
+	private final Metrics.Probe probe;
+	private final Backoff backoff;
+	private final Segment segment;
+	private volatile boolean started;
+	private volatile boolean interrupted;
+	private volatile boolean healthy;
+	private volatile boolean failed;
+	private volatile long connectCost;
+	private volatile double dataRate;
+	private volatile long received;
+
+	// selector thread only
+	private State state;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteBuffer header;
+	private final ByteBuffer[] slabs; // only the first may be partly filled between reads
+	private int slabCount;
+	private int readSlabs;
+	private int receiveBuffer;
+	private long rtt; // nanoseconds
+	private double rate; // bytes per nanosecond
+	private long windowStart; // nanoTime
+	private long windowBytes;
+	private long connectStart; // nanoTime
+	private long lastRead; // nanoTime
+	private long starvedAt; // nanoTime, 0 when a buffer was free
+	private boolean throttled;
+	private long throttledUntil; // nanoTime
+	private int throttleEpoch;
+	private long retryAt;
+	private long retryPosition;
+	private boolean gaveUp;
+	private boolean permitted;
+	private boolean reused;
+	private boolean keepAlive;
+	private long responseRemaining;
+	private long[] next; // range taken to pipeline, null when none
+	private ByteBuffer pipeline; // request for next on this connection, null when not sent
+	private boolean lookedAhead; // tried to take next during this response
+
+	NioGetter(@NonNull NioEngine engine, long start, long end) {
+		this.engine = engine;
+		finished = new CountDownLatch(1);
+		probe = engine.metrics.newProbe(this, engine.host);
+		segment = new Segment(start, end);
+		started = false;
+		interrupted = false;
+		healthy = false;
+		failed = false;
+		connectCost = -1;
+		dataRate = 0;
+		received = 0;
+		state = State.IDLE;
+		backoff = new Backoff();
+		gaveUp = false;
+		permitted = false;
+		starvedAt = 0;
+		throttled = false;
+		slabs = new ByteBuffer[Math.max(MAX_READ / engine.writer.pool.getSlabSize(), 1)];
+		slabCount = 0;
+		readSlabs = 1;
+		rtt = 0;
+		rate = 0;
+		next = null;
+		pipeline = null;
+	}
+
+	@Override
+	public void start() {
+		started = true;
+		engine.register(this);
+	}
+
+	@Override
+	public boolean isAlive() {
+		return started && finished.getCount() > 0;
+	}
+
+	@Override
+	public void interrupt() {
+		interrupted = true;
+		engine.wakeup();
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		if (started) {
+			finished.await();
+		}
+	}
+
+	@Override
+	public long getConnectCost() {
+		return connectCost;
+	}
+
+	@Override
+	public double getDataRate() {
+		return dataRate;
+	}
+
+	@Override
+	public long getReceivedSize() {
+		return received;
+	}
+
+	@Override
+	public long getRemainingSize() {
+		return segment.getRemaining();
+	}
+
+	@Override
+	public long getPosition() {
+		return segment.getPosition();
+	}
+
+	@Override
+	public long getEndPosition() {
+		return segment.getEnd();
+	}
+
+	@Override
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	@Override
+	public void truncate() {
+		segment.truncate();
+		interrupt();
+	}
+
+	@Override
+	public boolean isFailed() {
+		return failed;
+	}
+
+	@Override
+	@Nullable
+	public Getter fork() {
+		final long[] range = cut();
+		if (range == null) {
+			return null;
+		}
+		Getter getter = engine.mirrors.newGetter(range[0], range[1]);
+		getter.start();
+		return getter;
+	}
+
+	@Override
+	@Nullable
+	public long[] cut() {
+		return cut(engine.forkAlign);
+	}
+
+	@Override
+	@Nullable
+	public long[] cut(int align) {
+		if (!isAlive()) {
+			return null;
+		}
+		final long[] range = segment.cut(align);
+		if (range != null) {
+			probe.forked();
+		}
+		return range;
+	}
+
+	/**
+	 * @return true while waiting for a buffer or for the rate limiter, tick() resumes it
+	 */
+	boolean isPaused() {
+		return state == State.BODY && (slabCount == 0 || throttled);
+	}
+
+	void connect() {
+		if (interrupted || segment.getRemaining() == 0) {
+			finish();
+			return;
+		}
+		if (!permitted) {
+			permitted = engine.permits.tryAcquire();
+			if (!permitted) {
+				state = State.RETRY; // not an error, wait for a free slot of the host
+				retryAt = System.currentTimeMillis() + PERMIT_INTERVAL;
+				return;
+			}
+		}
+		retryPosition = segment.getPosition();
+		connectStart = System.nanoTime();
+		final SelectionKey idle = engine.takeIdle();
+		reused = idle != null;
+		if (idle != null) {
+			key = idle;
+			channel = (SocketChannel) idle.channel();
+			key.attach(this);
+			probe.connected(System.nanoTime() - connectStart);
+			try {
+				receiveBuffer = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+			} catch (IOException e) {
+				error(e);
+				return;
+			}
+			request();
+			return;
+		}
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			// raised before connecting so that the window scale covers it
+			receiveBuffer = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+			if (engine.getReceiveBuffer() > receiveBuffer) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, engine.getReceiveBuffer());
+				receiveBuffer = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+			}
+			if (channel.connect(engine.address)) {
+				key = channel.register(engine.getSelector(), SelectionKey.OP_WRITE, this);
+				connected();
+				request();
+			} else {
+				key = channel.register(engine.getSelector(), SelectionKey.OP_CONNECT, this);
+				state = State.CONNECTING;
+			}
+		} catch (IOException e) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Timers and cross-thread requests, called on every selector loop
+	 */
+	void tick(long now) {
+		if (!isAlive()) {
+			return;
+		}
+		if (interrupted) {
+			finish();
+		} else if (state == State.RETRY && now >= retryAt) {
+			connect();
+		} else if (isPaused()) {
+			try {
+				pump();
+			} catch (IOException e) {
+				error(e);
+			} catch (InterruptedException e) {
+				interrupted = true;
+				finish();
+			}
+		} else if (isTimedOut()) {
+			error(new SocketTimeoutException("no data from server in " + state));
+		}
+	}
+
+	/**
+	 * @return true when the server has been silent for too long while the getter waits for it
+	 */
+	private boolean isTimedOut() {
+		final long now = System.nanoTime();
+		switch (state) {
+		case CONNECTING:
+			return now - connectStart > Backoff.CONNECT_TIMEOUT * 1000000L;
+		case REQUEST:
+		case HEADER:
+			return now - connectStart > Backoff.READ_TIMEOUT * 1000000L;
+		case BODY:
+		case DRAIN:
+			return now - lastRead > Backoff.READ_TIMEOUT * 1000000L;
+		default:
+			return false;
+		}
+	}
+
+	void handle(@NonNull SelectionKey key) {
+		try {
+			switch (state) {
+			case CONNECTING:
+				if (key.isConnectable() && channel.finishConnect()) {
+					connected();
+					request();
+				}
+				break;
+			case REQUEST:
+				if (key.isWritable()) {
+					channel.write(header);
+					if (!header.hasRemaining()) {
+						header.clear();
+						state = State.HEADER;
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				}
+				break;
+			case HEADER:
+				if (key.isReadable()) {
+					if (channel.read(header) == -1) {
+						throw new EOFException("connection closed by server");
+					}
+					if (parseHeader()) {
+						state = State.BODY;
+						pump();
+					} else if (!header.hasRemaining()) {
+						throw new IOException("response header too large");
+					}
+				}
+				break;
+			case BODY:
+				if (key.isReadable()) {
+					pump();
+				}
+				break;
+			case DRAIN:
+				if (key.isReadable()) {
+					drain();
+				}
+				break;
+			default:
+				break;
+			}
+		} catch (IOException e) {
+			error(e);
+		} catch (InterruptedException e) {
+			interrupted = true;
+			finish();
+		}
+	}
+
+	/**
+	 * A new connection is established, the handshake took one round trip
+	 */
+	private void connected() {
+		final long elapsed = System.nanoTime() - connectStart;
+		probe.connected(elapsed);
+		rtt = elapsed;
+		engine.setRtt(elapsed);
+	}
+
+	private void request() {
+		if (header == null) {
+			header = ByteBuffer.allocate(HEADER_SIZE);
+		}
+		header.clear();
+		final long[] range = segment.get();
+		header.put(encodeRequest(range[0], range[1]));
+		header.flip();
+		state = State.REQUEST;
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	@NonNull
+	private byte[] encodeRequest(long start, long end) {
+		final String request = String.format(Locale.ROOT,
+				"GET %s HTTP/1.1\r\nHost: %s\r\nRange: bytes=%d-%d\r\n" +
+						"Accept-Encoding: identity\r\nConnection: keep-alive\r\n\r\n",
+				engine.path, engine.host, start, end - 1);
+		return request.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Send the request for the next range once the rest of this response fits into about one
+	 * round trip, so that the next response follows without a gap. The response must have a
+	 * length to tell where the next one starts.
+	 */
+	private void pipeline() throws IOException {
+		if (!engine.pipelining || interrupted || !keepAlive || responseRemaining < 0) {
+			return;
+		}
+		if (next == null) {
+			if (lookedAhead) {
+				return;
+			}
+			final long left = getRemainingSize() - buffered();
+			final long delay = rtt > 0 ? rtt : engine.getRtt();
+			final long ahead = Math.max((long) (rate * delay), engine.writer.pool.getSlabSize());
+			if (left > ahead || responseRemaining - left > DRAIN_LIMIT) {
+				return; // too early, or the range was cut and the connection will not be kept
+			}
+			lookedAhead = true;
+			next = engine.mirrors.steal(this);
+			if (next == null) {
+				return;
+			}
+		}
+		if (pipeline == null) {
+			pipeline = ByteBuffer.wrap(encodeRequest(next[0], next[1]));
+		}
+		if (pipeline.hasRemaining()) {
+			channel.write(pipeline); // the rest goes out with the next read or on completion
+		}
+	}
+
+	/**
+	 * @return true when the whole header has arrived, header is then left holding the body bytes
+	 * received along with it
+	 */
+	private boolean parseHeader() throws IOException {
+		final byte[] array = header.array();
+		final int len = header.position();
+		int end = -1;
+		for (int i = 3; i < len; i++) {
+			if (array[i] == '\n' && array[i - 1] == '\r' && array[i - 2] == '\n' &&
+					array[i - 3] == '\r') {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end == -1) {
+			return false;
+		}
+		final String[] lines = new String(array, 0, end, StandardCharsets.ISO_8859_1)
+				.split("\r\n");
+		final String[] status = lines[0].split(" ");
+		if (status.length < 2) {
+			throw new IOException("malformed status line: " + lines[0]);
+		}
+		final int code;
+		try {
+			code = Integer.parseInt(status[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("malformed status line: " + lines[0]);
+		}
+		final long position = segment.getPosition();
+		if (code != 206 && !(code == 200 && position == 0)) {
+			String retryAfter = null;
+			for (int i = 1; i < lines.length; i++) {
+				if (lines[i].toLowerCase(Locale.ROOT).startsWith("retry-after:")) {
+					retryAfter = lines[i].substring(12);
+				}
+			}
+			throw new StatusException(code, retryAfter);
+		}
+		keepAlive = status[0].equals("HTTP/1.1");
+		responseRemaining = -1;
+		for (int i = 1; i < lines.length; i++) {
+			final String line = lines[i].toLowerCase(Locale.ROOT);
+			if (line.startsWith("connection:") && line.contains("close")) {
+				keepAlive = false;
+			}
+			if (line.startsWith("content-length:")) {
+				try {
+					responseRemaining = Long.parseLong(line.substring(15).trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("malformed header: " + lines[i]);
+				}
+			}
+			if (line.startsWith("transfer-encoding:") && line.contains("chunked")) {
+				throw new IOException("chunked transfer not supported");
+			}
+			if (code == 206 && line.startsWith("content-range:") &&
+					!line.contains(" " + position + "-")) {
+				throw new IOException("content range mismatch: " + lines[i]);
+			}
+		}
+		if (responseRemaining < 0) {
+			keepAlive = false; // body ends with the connection
+		}
+		lookedAhead = false;
+		lastRead = System.nanoTime();
+		windowStart = lastRead;
+		windowBytes = 0;
+		probe.responded(lastRead - connectStart);
+		connectCost = (lastRead - connectStart) / 1000000;
+		header.limit(len);
+		header.position(end);
+		return true;
+	}
+
+	/**
+	 * Move body bytes into leased buffers and hand full buffers to the writer
+	 */
+	private void pump() throws IOException, InterruptedException {
+		while (true) {
+			final long room = lease();
+			if (room == 0) {
+				if (responseRemaining == 0 && getRemainingSize() > buffered()) {
+					// a response shorter than the range, retried in place as a reset
+					throw new EOFException("response ended before the range");
+				}
+				if (segment.getRemaining() > 0 && slabCount == 0) {
+					key.interestOps(0); // starved, tick() retries
+				} else if (flush()) {
+					complete();
+				}
+				return;
+			}
+			int n;
+			final long now;
+			if (header.hasRemaining()) {
+				n = 0;
+				for (int i = 0; i < slabCount && header.hasRemaining(); i++) {
+					final int len = Math.min(header.remaining(), slabs[i].remaining());
+					slabs[i].put(header.array(), header.position(), len);
+					header.position(header.position() + len);
+					n += len;
+				}
+				now = System.nanoTime();
+			} else {
+				if (throttled) {
+					final long time = System.nanoTime();
+					if (throttledUntil - time > 0 && throttleEpoch == engine.limiter.getEpoch()) {
+						key.interestOps(0); // throttled, tick() retries
+						return;
+					}
+					throttled = false;
+					lastRead = time; // waiting for the limiter is not a stall
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				// one scattering read over all leased slabs
+				setLimits(engine.limiter.quantum((int) room));
+				n = (int) channel.read(slabs, 0, slabCount);
+				setLimits(getRemainingSize() - buffered());
+				if (n == -1) {
+					throw new EOFException("unexpected end of stream");
+				}
+				if (n == 0) {
+					return;
+				}
+				now = System.nanoTime();
+				probe.stalled(now - lastRead);
+			}
+			responseRemaining -= n;
+			final int epoch = engine.limiter.getEpoch();
+			final long due = engine.limiter.reserve(n);
+			if (due != 0 && due - now > 0) {
+				throttled = true;
+				throttledUntil = due;
+				throttleEpoch = epoch;
+			}
+			measure(n, now);
+			lastRead = now;
+			healthy = true;
+			if (flush()) {
+				complete();
+				return;
+			}
+			pipeline();
+		}
+	}
+
+	/**
+	 * Lease slabs for the next read, as many as the read size and the rest of the range need
+	 *
+	 * @return bytes the leased slabs can take before the range ends
+	 */
+	private long lease() {
+		long needed = getRemainingSize() - buffered();
+		if (responseRemaining >= 0) {
+			needed = Math.min(needed, responseRemaining); // never read into the next response
+		}
+		long room = setLimits(needed);
+		while (slabCount < readSlabs && room < needed) {
+			final ByteBuffer buf = engine.writer.tryObtain();
+			if (buf == null) {
+				break;
+			}
+			if (slabCount == 0) {
+				engine.metrics.obtained(starvedAt == 0 ? 0 : System.nanoTime() - starvedAt);
+				if (starvedAt != 0) {
+					starvedAt = 0;
+					lastRead = System.nanoTime(); // waiting for a buffer is not a stall
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+			slabs[slabCount++] = buf;
+			room = setLimits(needed);
+		}
+		if (slabCount == 0 && needed > 0 && starvedAt == 0) {
+			starvedAt = System.nanoTime();
+		}
+		return room;
+	}
+
+	/**
+	 * @return bytes in the leased slabs
+	 */
+	private long buffered() {
+		long sum = 0;
+		for (int i = 0; i < slabCount; i++) {
+			sum += slabs[i].position();
+		}
+		return sum;
+	}
+
+	/**
+	 * Limit the leased slabs so that they take at most more bytes in order
+	 *
+	 * @return bytes the slabs can take
+	 */
+	private long setLimits(long more) {
+		long left = Math.max(more, 0);
+		long room = 0;
+		for (int i = 0; i < slabCount; i++) {
+			final ByteBuffer slab = slabs[i];
+			final int len = (int) Math.min(slab.capacity() - slab.position(), left);
+			slab.limit(slab.position() + len);
+			left -= len;
+			room += len;
+		}
+		return room;
+	}
+
+	/**
+	 * Hand full slabs to the writer and keep the partly filled one
+	 *
+	 * @return true when the range is done, remaining slabs are then returned to the pool
+	 */
+	private boolean flush() throws IOException, InterruptedException {
+		int i = 0;
+		try {
+			while (i < slabCount && slabs[i].position() > 0 && !slabs[i].hasRemaining()) {
+				final ByteBuffer slab = slabs[i];
+				slabs[i++] = null;
+				submit(slab);
+			}
+		} finally {
+			// a failed submit leaves no hole for release() to trip over
+			System.arraycopy(slabs, i, slabs, 0, slabCount - i);
+			for (int j = slabCount - i; j < slabCount; j++) {
+				slabs[j] = null;
+			}
+			slabCount -= i;
+		}
+		if (segment.getRemaining() > 0) {
+			return false;
+		}
+		release();
+		return true;
+	}
+
+	/**
+	 * Return leased slabs to the pool, partly filled ones are written first
+	 */
+	private void release() {
+		for (int i = 0; i < slabCount; i++) {
+			final ByteBuffer slab = slabs[i];
+			slabs[i] = null;
+			try {
+				if (slab.position() > 0) {
+					submit(slab); // keep what has been received
+				} else {
+					engine.writer.recycle(slab);
+				}
+			} catch (IOException | InterruptedException e) {
+				Logger.e("error saving partial buffer", e);
+			}
+		}
+		slabCount = 0;
+	}
+
+	/**
+	 * Track the rate of this connection and size reads and the receive buffer to the
+	 * bandwidth-delay product
+	 */
+	private void measure(int n, long now) {
+		dataRate = n * 1e6 / Math.max(now - lastRead, 1000000);
+		windowBytes += n;
+		final long elapsed = now - windowStart;
+		if (elapsed < RATE_WINDOW) {
+			return;
+		}
+		final double sample = (double) windowBytes / elapsed;
+		rate = rate > 0 ? rate * (1 - RATE_ALPHA) + sample * RATE_ALPHA : sample;
+		windowStart = now;
+		windowBytes = 0;
+		final long delay = rtt > 0 ? rtt : engine.getRtt();
+		if (delay <= 0) {
+			return;
+		}
+		final long bdp = (long) (rate * delay);
+		final int slabSize = engine.writer.pool.getSlabSize();
+		readSlabs = (int) Math.max(Math.min((bdp + slabSize - 1) / slabSize, slabs.length), 1);
+		// twice the product keeps the window open while a read is pending, never shrink below
+		// what the system chose since that would turn off its own tuning
+		final int target = (int) Math.min(Math.max(bdp * 2, MIN_RECEIVE_BUFFER), MAX_READ);
+		engine.setReceiveBuffer(target);
+		if (target > receiveBuffer) {
+			try {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, target);
+				receiveBuffer = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+			} catch (IOException e) {
+				Logger.w("receive buffer not resized", e);
+				receiveBuffer = Integer.MAX_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * The range is done: drain the response if that keeps the connection, then continue with
+	 * stolen work on the same connection or park it in the idle pool
+	 */
+	private void complete() throws IOException {
+		if (keepAlive && responseRemaining > 0) {
+			if (responseRemaining > DRAIN_LIMIT) {
+				keepAlive = false;
+			} else {
+				state = State.DRAIN;
+				key.interestOps(SelectionKey.OP_READ);
+				drain();
+				return;
+			}
+		}
+		final boolean reusable = keepAlive && responseRemaining == 0;
+		long[] range = next;
+		next = null;
+		if (interrupted && range != null) {
+			engine.mirrors.giveBack(range[0], range[1]);
+			range = null;
+		}
+		final ByteBuffer requested = reusable && range != null ? pipeline : null;
+		pipeline = null;
+		if (range == null && !interrupted) {
+			range = engine.mirrors.steal(this);
+		}
+		if (range == null) {
+			if (reusable && requested == null) {
+				engine.putIdle(key);
+				key = null;
+				channel = null;
+			}
+			finish();
+			return;
+		}
+		segment.reset(range[0], range[1]);
+		backoff.reset();
+		retryPosition = range[0];
+		connectStart = System.nanoTime();
+		if (requested != null) {
+			// the request is on the wire already, unless part of it could not be sent yet
+			reused = true;
+			probe.connected(0);
+			header.clear();
+			header.put(requested);
+			header.flip();
+			if (header.hasRemaining()) {
+				state = State.REQUEST;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				header.clear();
+				state = State.HEADER;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		} else if (reusable) {
+			reused = true;
+			probe.connected(0);
+			request();
+		} else {
+			close();
+			connect();
+		}
+	}
+
+	private void drain() throws IOException {
+		responseRemaining -= header.remaining();
+		header.position(header.limit());
+		while (responseRemaining > 0) {
+			header.clear();
+			header.limit((int) Math.min(responseRemaining, header.capacity()));
+			final int n = channel.read(header);
+			if (n == -1) {
+				throw new EOFException("unexpected end of stream");
+			}
+			if (n == 0) {
+				return;
+			}
+			responseRemaining -= n;
+		}
+		header.clear();
+		header.limit(0);
+		complete();
+	}
+
+	private void submit(@NonNull ByteBuffer buf) throws IOException, InterruptedException {
+		buf.flip();
+		// the range may have been forked while reading, only claimed bytes are ours
+		final long pos = segment.getPosition();
+		final int len = segment.claim(buf.limit());
+		if (len == 0) {
+			engine.writer.recycle(buf);
+			return;
+		}
+		buf.limit(len);
+		try {
+			engine.writer.write(buf, pos);
+		} catch (IOException | InterruptedException e) {
+			segment.unclaim(len);
+			throw e;
+		}
+		received += len;
+		probe.received(len);
+	}
+
+	private void error(IOException e) {
+		if (reused && segment.getPosition() == retryPosition && state != State.BODY &&
+				!(e instanceof StatusException)) {
+			// the server dropped an idle keep-alive connection, not a real failure
+			Logger.d("reused connection closed: " + e.getMessage());
+			close();
+			connect();
+			return;
+		}
+		healthy = false;
+		close();
+		if (segment.getPosition() > retryPosition) {
+			backoff.reset();
+		}
+		// retrying is pointless once the disk refuses data
+		final long delay = engine.writer.isFailed() ? -1 :
+				backoff.next(e, engine.mirrors.hasAlternative(this));
+		Logger.e("file get error, " + Backoff.classify(e) + ", retry=" + backoff.getAttempt(), e);
+		if (delay < 0 || segment.getRemaining() == 0) {
+			gaveUp = delay < 0;
+			finish();
+			return;
+		}
+		probe.retried();
+		state = State.RETRY;
+		retryAt = System.currentTimeMillis() + delay;
+	}
+
+	private void close() {
+		release();
+		pipeline = null; // the next range is requested again on the new connection
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			channel = null;
+		}
+		state = State.IDLE;
+	}
+
+	private void finish() {
+		close();
+		if (next != null) {
+			engine.mirrors.giveBack(next[0], next[1]);
+			next = null;
+		}
+		state = State.DONE;
+		failed = segment.getRemaining() > 0;
+		if (failed && gaveUp) {
+			// a connection still making progress takes over the rest
+			final long[] range = segment.truncate();
+			if (range != null && !engine.mirrors.giveBack(range[0], range[1])) {
+				segment.setEnd(range[0], range[1]);
+			}
+		}
+		if (permitted) {
+			engine.permits.release();
+			permitted = false;
+		}
+		probe.finished();
+		finished.countDown();
+	}
+
+	private enum State {
+		IDLE,
+		CONNECTING,
+		REQUEST,
+		HEADER,
+		BODY,
+		DRAIN,
+		RETRY,
+		DONE
+	}
+}
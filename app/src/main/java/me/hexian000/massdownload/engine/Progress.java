@@ -0,0 +1,99 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Progress of one download at one moment. {@link Download} samples its counters on its own
+ * timer and hands the same event to every listener whose interval has passed, so watching a
+ * download costs one sample however many listeners there are.
+ *
+ * @see Download#addProgressListener(Listener, long)
+ */
+public final class Progress {
+	private final long time;
+	private final long length;
+	private final long written;
+	private final long received;
+	private final double speed;
+	private final long eta;
+	private final int alive;
+	private final int healthy;
+	private final boolean paused;
+
+	Progress(long time, long length, long written, long received, double speed, long eta,
+	         int alive, int healthy, boolean paused) {
+		this.time = time;
+		this.length = length;
+		this.written = written;
+		this.received = received;
+		this.speed = speed;
+		this.eta = eta;
+		this.alive = alive;
+		this.healthy = healthy;
+		this.paused = paused;
+	}
+
+	/**
+	 * @return wall clock time of the sample in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return bytes in the file or -1 while a stream of unknown length is running
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return bytes in the file so far, decoded when the response is compressed
+	 */
+	public long getWrittenSize() {
+		return written;
+	}
+
+	/**
+	 * @return bytes received from the network, including duplicates and compressed bytes
+	 */
+	public long getReceivedSize() {
+		return received;
+	}
+
+	/**
+	 * @return received bytes per second, smoothed over the last few seconds
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return estimated milliseconds until the file is complete or -1 when unknown
+	 */
+	public long getEta() {
+		return eta;
+	}
+
+	public int getAliveThreadCount() {
+		return alive;
+	}
+
+	public int getHealthyThreadCount() {
+		return healthy;
+	}
+
+	/**
+	 * @see Download#pause()
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the timer thread of the download, hand the event over instead of blocking
+		 */
+		void onProgress(@NonNull Progress progress);
+	}
+}
@@ -0,0 +1,111 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns samples of the download counters into {@link Progress} events and coalesces them for
+ * each listener to the interval it asked for. Speeds are smoothed so that a single slow or
+ * bursty second does not make the estimate jump. Sampled only from the download timer.
+ */
+class ProgressMeter {
+	static final long INTERVAL = 1000; // 1 second
+	private static final double ALPHA = 0.2; // EWMA weight of a new sample
+	private final List<Subscription> subscriptions;
+	private long lastTime;
+	private long lastWritten;
+	private long lastReceived;
+	private double receiveRate; // bytes per second, -1 before the first sample
+	private double writeRate; // bytes per second, -1 before the first sample
+
+	ProgressMeter() {
+		subscriptions = new CopyOnWriteArrayList<>();
+		receiveRate = -1;
+		writeRate = -1;
+	}
+
+	private static double smooth(double average, double sample) {
+		return average < 0 ? sample : ALPHA * sample + (1 - ALPHA) * average;
+	}
+
+	/**
+	 * The download has started, the first sample measures from here
+	 *
+	 * @param written bytes already in the file, e.g. when resuming
+	 */
+	void started(long now, long written) {
+		lastTime = now;
+		lastWritten = written;
+		lastReceived = 0;
+	}
+
+	/**
+	 * @param interval milliseconds between events at least, rounded up to whole samples
+	 */
+	void subscribe(@NonNull Progress.Listener listener, long interval) {
+		subscriptions.add(new Subscription(listener, interval));
+	}
+
+	void unsubscribe(@NonNull Progress.Listener listener) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.listener == listener) {
+				subscriptions.remove(subscription);
+			}
+		}
+	}
+
+	boolean isWatched() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * @return the event for the current counters, rates are updated once per call
+	 */
+	@NonNull
+	Progress sample(long now, long length, long written, long received, int alive,
+	                int healthy, boolean paused) {
+		final long elapsed = now - lastTime;
+		if (lastTime > 0 && elapsed > 0) {
+			receiveRate = smooth(receiveRate, (received - lastReceived) * 1000.0 / elapsed);
+			writeRate = smooth(writeRate, (written - lastWritten) * 1000.0 / elapsed);
+		}
+		lastTime = now;
+		lastWritten = written;
+		lastReceived = received;
+		long eta = -1;
+		if (length >= 0 && writeRate > 0 && !paused) {
+			eta = (long) ((length - written) * 1000.0 / writeRate);
+		}
+		return new Progress(now, length, written, received, Math.max(receiveRate, 0), eta,
+				alive, healthy, paused);
+	}
+
+	/**
+	 * Deliver to every listener whose interval has passed
+	 *
+	 * @param last deliver to all, the download has ended
+	 */
+	void publish(@NonNull Progress progress, boolean last) {
+		for (Subscription subscription : subscriptions) {
+			if (last || progress.getTime() >= subscription.due) {
+				// half a sample of slack, timer jitter must not skip a sample
+				subscription.due = progress.getTime() + subscription.interval - INTERVAL / 2;
+				subscription.listener.onProgress(progress);
+			}
+		}
+	}
+
+	private static final class Subscription {
+		private final Progress.Listener listener;
+		private final long interval;
+		private long due;
+
+		private Subscription(@NonNull Progress.Listener listener, long interval) {
+			this.listener = listener;
+			this.interval = interval;
+			due = 0;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original writer: a single thread taking blocks from one queue and doing seek and write.
+ */
+class QueueWriter extends Writer {
+	private final WriterThread thread;
+
+	QueueWriter(@NonNull DownloadOptions options, @NonNull File file, long length)
+			throws IOException {
+		super(options, file, length);
+		thread = new WriterThread(1);
+	}
+
+	@Override
+	void submit(@NonNull ByteBuffer data, long offset) throws IOException, InterruptedException {
+		thread.put(data, offset);
+	}
+
+	@Override
+	public void start() {
+		thread.start();
+	}
+
+	@Override
+	void persist(@NonNull ByteBuffer data, long offset) throws IOException {
+		file.seek(offset);
+		file.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		data.position(data.limit());
+	}
+
+	@Override
+	int getQueueDepth() {
+		return thread.getDepth();
+	}
+
+	@Override
+	void flush() throws InterruptedException {
+		thread.drain();
+	}
+
+	@Override
+	void shutdown() throws InterruptedException {
+		thread.finish();
+		thread.join();
+	}
+}
@@ -0,0 +1,152 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Disjoint half-open byte ranges, adjacent and overlapping ranges are merged on insert
+ */
+class RangeSet {
+	private final TreeMap<Long, Long> ranges; // start -> end
+	private volatile long size; // kept in step so progress polling does not walk the ranges
+
+	RangeSet() {
+		ranges = new TreeMap<>();
+		size = 0;
+	}
+
+	synchronized void add(long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+		if (floor != null && floor.getValue() >= start) {
+			start = floor.getKey();
+			end = Math.max(end, floor.getValue());
+		}
+		Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+		long size = this.size;
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			size -= next.getValue() - next.getKey();
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+		this.size = size + end - start;
+	}
+
+	synchronized void remove(long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		long size = this.size;
+		Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+		if (floor != null && floor.getValue() > start) {
+			size -= Math.min(floor.getValue(), end) - start;
+			ranges.put(floor.getKey(), start);
+			if (floor.getValue() > end) {
+				ranges.put(end, floor.getValue());
+			}
+			if (floor.getKey() == start) {
+				ranges.remove(start);
+			}
+		}
+		Map.Entry<Long, Long> next = ranges.higherEntry(start);
+		while (next != null && next.getKey() < end) {
+			size -= Math.min(next.getValue(), end) - next.getKey();
+			ranges.remove(next.getKey());
+			if (next.getValue() > end) {
+				ranges.put(end, next.getValue());
+				break;
+			}
+			next = ranges.higherEntry(start);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Add a range and report which part of it was new. Covered parts at the head and the tail
+	 * are trimmed, a covered hole in the middle is not.
+	 *
+	 * @return the {start, end} pair not covered before or null if the range was fully covered
+	 */
+	@Nullable
+	synchronized long[] claim(long start, long end) {
+		long s = start;
+		Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+		if (floor != null && floor.getValue() > s) {
+			s = floor.getValue();
+		}
+		if (s >= end) {
+			return null;
+		}
+		long e = end;
+		Map.Entry<Long, Long> tail = ranges.floorEntry(end - 1);
+		if (tail != null && tail.getKey() > s && tail.getValue() >= end) {
+			e = tail.getKey();
+		}
+		add(start, end);
+		return new long[]{s, e};
+	}
+
+	synchronized boolean contains(long start, long end) {
+		Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+		return floor != null && floor.getValue() >= end;
+	}
+
+	synchronized boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	/**
+	 * @return total bytes covered, read without taking the lock
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return ranges as {start, end} pairs in order
+	 */
+	@NonNull
+	synchronized List<long[]> toList() {
+		List<long[]> list = new ArrayList<>(ranges.size());
+		for (Map.Entry<Long, Long> entry : ranges.entrySet()) {
+			list.add(new long[]{entry.getKey(), entry.getValue()});
+		}
+		return list;
+	}
+
+	/**
+	 * @return ranges within [0, length) not covered, as {start, end} pairs in order
+	 */
+	@NonNull
+	synchronized List<long[]> missing(long length) {
+		List<long[]> list = new ArrayList<>();
+		long pos = 0;
+		for (Map.Entry<Long, Long> entry : ranges.entrySet()) {
+			if (entry.getKey() >= length) {
+				break;
+			}
+			if (entry.getKey() > pos) {
+				list.add(new long[]{pos, entry.getKey()});
+			}
+			pos = Math.max(pos, entry.getValue());
+		}
+		if (pos < length) {
+			list.add(new long[]{pos, length});
+		}
+		return list;
+	}
+
+	synchronized void clear() {
+		ranges.clear();
+		size = 0;
+	}
+}
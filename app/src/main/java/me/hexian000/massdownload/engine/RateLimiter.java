@@ -0,0 +1,146 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the bytes received by getters, a download's limiter may be chained to
+ * one shared by all downloads. Getters pay for each read after it returns and wait until the
+ * bucket has room again. Reads are capped to a short quantum while limited, and payments are
+ * queued in order, so active getters take turns and get equal shares of the rate unless one
+ * cannot use its share.
+ */
+public class RateLimiter {
+	private static final long BURST = 100 * 1000000L; // 100 ms of the rate, in nanoseconds
+	private static final long QUANTUM = 20 * 1000000L; // 20 ms of the rate, in nanoseconds
+	private static final int MIN_QUANTUM = 4 * 1024; // 4 KiB
+	private static final long MAX_SLEEP = 100; // milliseconds, to notice a changed rate
+	private final RateLimiter parent;
+	private volatile long rate;
+	private volatile int epoch;
+	private long free; // nanoTime when every byte paid so far has passed
+
+	/**
+	 * @param rate bytes per second, 0 for unlimited
+	 */
+	public RateLimiter(long rate) {
+		this(rate, null);
+	}
+
+	RateLimiter(long rate, @Nullable RateLimiter parent) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate < 0");
+		}
+		this.rate = rate;
+		this.parent = parent;
+		epoch = 0;
+		free = System.nanoTime();
+	}
+
+	/**
+	 * @return bytes per second, 0 for unlimited
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Change the rate at once, getters waiting on the old rate stop waiting
+	 *
+	 * @param rate bytes per second, 0 for unlimited
+	 */
+	public void setRate(long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate < 0");
+		}
+		synchronized (this) {
+			this.rate = rate;
+			free = System.nanoTime();
+			epoch++;
+		}
+	}
+
+	/**
+	 * @return true when this limiter or a parent has a rate
+	 */
+	boolean isLimited() {
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			if (limiter.rate > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return changes when the rate of this limiter or a parent changes
+	 */
+	int getEpoch() {
+		int sum = 0;
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			sum += limiter.epoch;
+		}
+		return sum;
+	}
+
+	/**
+	 * @param max bytes the caller has room for
+	 * @return bytes to read next
+	 */
+	int quantum(int max) {
+		int quantum = max;
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			final long rate = limiter.rate;
+			if (rate > 0) {
+				quantum = (int) Math.min(quantum, Math.max(rate * QUANTUM / 1000000000L,
+						MIN_QUANTUM));
+			}
+		}
+		return quantum;
+	}
+
+	/**
+	 * Pay for bytes already received
+	 *
+	 * @return nanoTime from which the caller may read again, 0 when nothing limits it
+	 */
+	long reserve(int n) {
+		long due = 0;
+		boolean limited = false;
+		for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+			if (limiter.rate <= 0) {
+				continue;
+			}
+			final long time;
+			synchronized (limiter) {
+				final long rate = limiter.rate;
+				if (rate <= 0) {
+					continue;
+				}
+				// up to a burst of unused time carries over from an idle period
+				limiter.free = Math.max(limiter.free, System.nanoTime() - BURST) +
+						n * 1000000000L / rate;
+				time = limiter.free;
+			}
+			due = limited && due - time > 0 ? due : time;
+			limited = true;
+		}
+		return due;
+	}
+
+	/**
+	 * Pay for bytes already received and sleep until the caller may read again
+	 */
+	void acquire(int n) throws InterruptedException {
+		final long due = reserve(n);
+		if (due == 0) {
+			return;
+		}
+		final int epoch = getEpoch();
+		long wait;
+		while ((wait = due - System.nanoTime()) > 0 && epoch == getEpoch()) {
+			TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(MAX_SLEEP)));
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The byte range of one getter. The getter owning it claims bytes at the position before
+ * writing them, other threads split or truncate the end, all with compare-and-set on an
+ * immutable pair so that no thread waits for a getter blocked in a write and every reader sees
+ * a position and an end that belong together. Each byte of the range is claimed by exactly one
+ * getter: a split only gives away bytes not claimed yet.
+ */
+final class Segment {
+	private final AtomicReference<Span> span;
+
+	Segment(long start, long end) {
+		span = new AtomicReference<>(new Span(start, end));
+	}
+
+	/**
+	 * @return file offset of the next byte to be claimed
+	 */
+	long getPosition() {
+		return span.get().position;
+	}
+
+	/**
+	 * @return file offset where the range ends, exclusive
+	 */
+	long getEnd() {
+		return span.get().end;
+	}
+
+	long getRemaining() {
+		final Span s = span.get();
+		return Math.max(s.end - s.position, 0);
+	}
+
+	/**
+	 * @return {position, end} read at once
+	 */
+	long[] get() {
+		final Span s = span.get();
+		return new long[]{s.position, s.end};
+	}
+
+	/**
+	 * Take up to len bytes at the position for the owning getter to write, only the owner moves
+	 * the position so the claimed bytes start at the position read before the call
+	 *
+	 * @return bytes claimed, 0 when the range has ended
+	 */
+	int claim(int len) {
+		while (true) {
+			final Span s = span.get();
+			final int n = (int) Math.min(len, Math.max(s.end - s.position, 0));
+			if (n == 0 || span.compareAndSet(s, new Span(s.position + n, s.end))) {
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Give back the last len bytes claimed because they could not be written, the range may
+	 * have been split meanwhile but never below the position
+	 */
+	void unclaim(int len) {
+		while (true) {
+			final Span s = span.get();
+			if (span.compareAndSet(s, new Span(s.position - len, s.end))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Move the owner on to a new range
+	 */
+	void reset(long start, long end) {
+		span.set(new Span(start, end));
+	}
+
+	/**
+	 * Split the unclaimed part in half on an aligned offset and give up the upper half
+	 *
+	 * @return the {start, end} range given up or null when the range is too small
+	 */
+	@Nullable
+	long[] cut(int align) {
+		while (true) {
+			final Span s = span.get();
+			long pos = (s.end - s.position) / 2 + s.position;
+			pos -= pos % align;
+			if (pos <= s.position + align || pos > s.end) {
+				return null;
+			}
+			if (span.compareAndSet(s, new Span(s.position, pos))) {
+				return new long[]{pos, s.end};
+			}
+		}
+	}
+
+	/**
+	 * End the range at the position
+	 *
+	 * @return the {start, end} range given up or null when nothing was left
+	 */
+	@Nullable
+	long[] truncate() {
+		while (true) {
+			final Span s = span.get();
+			if (s.position >= s.end) {
+				return null;
+			}
+			if (span.compareAndSet(s, new Span(s.position, s.position))) {
+				return new long[]{s.position, s.end};
+			}
+		}
+	}
+
+	/**
+	 * Replace an open end once a response or the end of the stream revealed the length
+	 *
+	 * @return false when the end was not expected anymore, e.g. after a truncate
+	 */
+	boolean setEnd(long expected, long end) {
+		while (true) {
+			final Span s = span.get();
+			if (s.end != expected) {
+				return false;
+			}
+			if (span.compareAndSet(s, new Span(s.position, end))) {
+				return true;
+			}
+		}
+	}
+
+	private static final class Span {
+		final long position;
+		final long end;
+
+		Span(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+	}
+}
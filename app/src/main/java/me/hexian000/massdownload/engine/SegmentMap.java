@@ -0,0 +1,70 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The getters of one download in start order, each owning the {@link Segment} of its range.
+ * Getters are appended with compare-and-set on a copied array, so the scheduler, stealing
+ * getters and progress polling read a consistent snapshot with a single volatile load and never
+ * wait for each other. The same copy drops getters that have finished, their counters are
+ * already folded into {@link Metrics}, so forks, refetches and racers do not pile up.
+ */
+final class SegmentMap implements Iterable<Getter> {
+	private static final Getter[] EMPTY = new Getter[0];
+	private final AtomicReference<Getter[]> getters;
+
+	SegmentMap() {
+		getters = new AtomicReference<>(EMPTY);
+	}
+
+	void add(@NonNull Getter getter) {
+		addAll(Collections.singletonList(getter));
+	}
+
+	void addAll(@NonNull Collection<Getter> added) {
+		if (added.isEmpty()) {
+			return;
+		}
+		while (true) {
+			final Getter[] old = getters.get();
+			Getter[] next = new Getter[old.length + added.size()];
+			int i = 0;
+			for (Getter getter : old) {
+				if (getter.isAlive()) {
+					next[i++] = getter;
+				}
+			}
+			for (Getter getter : added) {
+				next[i++] = getter;
+			}
+			if (i < next.length) {
+				next = Arrays.copyOf(next, i);
+			}
+			if (getters.compareAndSet(old, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return getters alive at the last addition and those started since, later additions
+	 * are not reflected
+	 */
+	@NonNull
+	List<Getter> snapshot() {
+		return Collections.unmodifiableList(Arrays.asList(getters.get()));
+	}
+
+	@NonNull
+	@Override
+	public Iterator<Getter> iterator() {
+		return snapshot().iterator();
+	}
+}
@@ -0,0 +1,45 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Decides when to split running segments into more connections. Called periodically from the
+ * fork timer of one download, implementations may keep state between calls.
+ */
+public interface SegmentScheduler {
+	/**
+	 * @return milliseconds between {@link #schedule(List, long, int)} calls
+	 */
+	long getInterval();
+
+	/**
+	 * Read by getters finishing their range, which retire instead of taking more work while
+	 * the download has more connections than this
+	 *
+	 * @param limit connections the download may use at the moment
+	 * @return connections the scheduler wants now, at most limit
+	 */
+	int getTarget(int limit);
+
+	/**
+	 * @param getters snapshot of the getters of the download, may include finished ones
+	 * @param now     current time in milliseconds
+	 * @param limit   connections the download may use at the moment
+	 * @return getters forked and started by this call
+	 */
+	@NonNull
+	List<Getter> schedule(@NonNull List<Getter> getters, long now, int limit);
+
+	enum Type {
+		/**
+		 * fork the largest segment every 5 seconds while all connections are healthy
+		 */
+		SIMPLE,
+		/**
+		 * grow the connection count while it still raises the smoothed aggregate throughput
+		 */
+		ADAPTIVE
+	}
+}
@@ -0,0 +1,72 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The original heuristic: fork the largest segment when forking costs less than half of its
+ * remaining time, based on the last data rate sample.
+ */
+class SimpleScheduler implements SegmentScheduler {
+	private final long minimalFork;
+
+	SimpleScheduler(long minimalFork) {
+		this.minimalFork = minimalFork;
+	}
+
+	@Override
+	public long getInterval() {
+		return 5000;
+	}
+
+	@Override
+	public int getTarget(int limit) {
+		return limit;
+	}
+
+	@NonNull
+	@Override
+	public List<Getter> schedule(@NonNull List<Getter> getters, long now, int limit) {
+		List<Getter> forked = new ArrayList<>();
+		int alive = 0;
+		int healthy = 0;
+		for (Getter getter : getters) {
+			if (getter.isAlive()) {
+				alive++;
+				if (getter.isHealthy()) {
+					healthy++;
+				}
+			}
+		}
+		if (alive < limit && alive == healthy) {
+			Logger.d("start fork: " + healthy + "/" + alive);
+			Getter maxGetter = null;
+			long maxRemain = 0;
+			long maxCost = -1;
+			for (Getter getter : getters) {
+				final long remain = getter.getRemainingSize();
+				final long cost = getter.getConnectCost();
+				if (remain > maxRemain) {
+					maxRemain = remain;
+					maxGetter = getter;
+				}
+				if (cost > maxCost) {
+					maxCost = cost;
+				}
+			}
+			if (maxCost >= 0 && maxGetter != null && maxRemain > minimalFork) {
+				final double timeRemain = (double) maxRemain / maxGetter.getDataRate();
+				Logger.d("maxCost: " + maxCost + " timeRemain: " + timeRemain);
+				if (maxCost < timeRemain / 2) { // worthy to fork
+					Getter newGetter = maxGetter.fork();
+					if (newGetter != null) {
+						forked.add(newGetter);
+					}
+				}
+			}
+		}
+		return forked;
+	}
+}
@@ -0,0 +1,64 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A response whose status code does not deliver the requested range
+ */
+class StatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	private static final long MAX_RETRY_AFTER = 10 * 60; // 10 minutes in seconds
+	private final int code;
+	private final long retryAfter;
+
+	/**
+	 * @param retryAfter value of the Retry-After header or null
+	 */
+	StatusException(int code, @Nullable String retryAfter) {
+		super("unexpected status: " + code);
+		this.code = code;
+		this.retryAfter = parseRetryAfter(retryAfter);
+	}
+
+	/**
+	 * @return delay in milliseconds or 0 when not given or already past
+	 */
+	private static long parseRetryAfter(@Nullable String value) {
+		if (value == null) {
+			return 0;
+		}
+		long seconds;
+		try {
+			seconds = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			// or an HTTP date, e.g. "Wed, 21 Oct 2015 07:28:00 GMT"
+			final SimpleDateFormat format =
+					new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				final long date = format.parse(value.trim()).getTime();
+				seconds = (date - System.currentTimeMillis()) / 1000;
+			} catch (ParseException ignored) {
+				return 0;
+			}
+		}
+		return Math.min(Math.max(seconds, 0), MAX_RETRY_AFTER) * 1000;
+	}
+
+	int getCode() {
+		return code;
+	}
+
+	/**
+	 * @return milliseconds the server asked to wait before trying again, 0 when not told
+	 */
+	long getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,55 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Getters on their own threads over URLConnection. Keep-alive connections and TLS sessions are
+ * pooled by the platform HTTP stack, a getter that takes more work after its range keeps using
+ * the same connection as long as it consumed the whole response.
+ */
+class ThreadEngine implements Engine {
+	final URL url;
+	final Writer writer;
+	final MirrorSet mirrors;
+	final Metrics metrics;
+	final RateLimiter limiter;
+	final Semaphore permits;
+	final int forkAlign;
+
+	ThreadEngine(@NonNull URL url, @NonNull Writer writer, @NonNull MirrorSet mirrors,
+	             @NonNull Metrics metrics, @NonNull RateLimiter limiter,
+	             @NonNull DownloadOptions options) {
+		this.url = url;
+		this.writer = writer;
+		this.mirrors = mirrors;
+		this.metrics = metrics;
+		this.limiter = limiter;
+		permits = HostLimiter.get(url, options.getHostConnections());
+		forkAlign = options.getPieceSize();
+	}
+
+	@NonNull
+	@Override
+	public Getter newGetter(long start, long end) {
+		return new ThreadGetter(this, start, end);
+	}
+
+	/**
+	 * @see ThreadGetter#ThreadGetter(ThreadEngine, long, long, URLConnection, long, long, Decoder)
+	 */
+	@NonNull
+	Getter newGetter(long start, long end, @NonNull URLConnection connection, long connected,
+	                 long responded, @Nullable Decoder decoder) throws IOException {
+		return new ThreadGetter(this, start, end, connection, connected, responded, decoder);
+	}
+
+	@Override
+	public void shutdown() {
+	}
+}
@@ -0,0 +1,385 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking getter owning one thread and one URLConnection at a time
+ */
+class ThreadGetter extends Thread implements Getter {
+	private static final int DRAIN_LIMIT = 256 * 1024; // 256 KiB
+	private final ThreadEngine engine;
+	private final URL url;
+	private final Writer writer;
+	private final Metrics.Probe probe;
+	private Decoder decoder; // positions count wire bytes when set
+	private final Segment segment;
+	private boolean healthy;
+	private boolean failed;
+	private InputStream inputStream;
+	private long responseRemaining;
+	private long connectCost;
+	private double dataRate;
+	private volatile long received;
+
+	ThreadGetter(@NonNull ThreadEngine engine, long start, long end) {
+		super();
+		this.engine = engine;
+		url = engine.url;
+		writer = engine.writer;
+		probe = engine.metrics.newProbe(this, url.getHost());
+		segment = new Segment(start, end);
+		healthy = false;
+		failed = false;
+		connectCost = -1;
+		dataRate = 0;
+		received = 0;
+	}
+
+	/**
+	 * Continue reading a response that is already open, e.g. the probe of the download
+	 *
+	 * @param connection response for a range starting at the start of this getter
+	 * @param connected  nanoseconds the connection took
+	 * @param responded  nanoseconds until the response header arrived
+	 * @param decoder    takes the body of a compressed response instead of the writer, or null
+	 */
+	ThreadGetter(@NonNull ThreadEngine engine, long start, long end,
+	             @NonNull URLConnection connection, long connected, long responded,
+	             @Nullable Decoder decoder) throws IOException {
+		this(engine, start, end);
+		this.decoder = decoder;
+		inputStream = connection.getInputStream();
+		responseRemaining = connection.getContentLengthLong();
+		probe.connected(connected);
+		probe.responded(responded);
+		connectCost = responded / 1000000;
+	}
+
+	@Override
+	public long getConnectCost() {
+		return connectCost;
+	}
+
+	@Override
+	public double getDataRate() {
+		return dataRate;
+	}
+
+	@Override
+	public long getReceivedSize() {
+		return received;
+	}
+
+	@Override
+	public long getRemainingSize() {
+		return segment.getRemaining();
+	}
+
+	@Override
+	public long getPosition() {
+		return segment.getPosition();
+	}
+
+	@Override
+	public long getEndPosition() {
+		return segment.getEnd();
+	}
+
+	@Override
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	@Override
+	@Nullable
+	public Getter fork() {
+		final long[] range = cut();
+		if (range == null) {
+			return null;
+		}
+		Getter getter = engine.mirrors.newGetter(range[0], range[1]);
+		getter.start();
+		return getter;
+	}
+
+	@Override
+	@Nullable
+	public long[] cut() {
+		return cut(engine.forkAlign);
+	}
+
+	@Override
+	@Nullable
+	public long[] cut(int align) {
+		if (!isAlive()) {
+			return null;
+		}
+		final long[] range = segment.cut(align);
+		if (range != null) {
+			probe.forked();
+		}
+		return range;
+	}
+
+	@Override
+	public void truncate() {
+		segment.truncate();
+		interrupt();
+	}
+
+	@Override
+	public boolean isFailed() {
+		return failed;
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				engine.permits.acquire();
+			} catch (InterruptedException e) {
+				failed = segment.getRemaining() > 0;
+				return;
+			}
+			try {
+				do {
+					runRange();
+				} while (!failed && !isInterrupted() && nextRange());
+			} finally {
+				engine.permits.release();
+			}
+		} finally {
+			closeStream();
+			if (decoder != null) {
+				decoder.finish();
+			}
+			probe.finished();
+		}
+	}
+
+	/**
+	 * Continue on a range stolen from another segment, the connection pool lets the request
+	 * reuse the connection of the previous one
+	 */
+	private boolean nextRange() {
+		final long[] range = engine.mirrors.steal(this);
+		if (range == null) {
+			return false;
+		}
+		segment.reset(range[0], range[1]);
+		return true;
+	}
+
+	private void runRange() {
+		final Backoff backoff = new Backoff();
+		boolean gaveUp = false;
+		while (true) {
+			final long oldPos = segment.getPosition();
+			try {
+				try {
+					if (inputStream == null) {
+						connect();
+					}
+					download();
+					drain();
+					break;
+				} catch (IOException e) {
+					if (oldPos < segment.getPosition()) {
+						backoff.reset();
+					}
+					// a compressed stream cannot resume in the middle, nor a file the disk refuses
+					final long delay = decoder != null || writer.isFailed() ? -1 :
+							backoff.next(e, engine.mirrors.hasAlternative(this));
+					Logger.e("file get error, " + Backoff.classify(e) + ", retry=" +
+							backoff.getAttempt(), e);
+					if (delay < 0) {
+						gaveUp = true;
+						break;
+					}
+					probe.retried();
+					healthy = false;
+					closeStream();
+					Thread.sleep(delay);
+				} finally {
+					closeStream();
+				}
+			} catch (InterruptedException e) {
+				Logger.e("writer interrupted", e);
+				break;
+			}
+		}
+		failed = segment.getRemaining() > 0;
+		if (failed && gaveUp) {
+			handOver();
+		}
+	}
+
+	/**
+	 * Give the rest of the range back so that a connection still making progress takes it over
+	 */
+	private void handOver() {
+		final long[] range = segment.truncate();
+		if (range != null && !engine.mirrors.giveBack(range[0], range[1])) {
+			segment.setEnd(range[0], range[1]); // nobody else can take it
+		}
+	}
+
+	private void closeStream() {
+		if (inputStream != null) {
+			try {
+				inputStream.close();
+			} catch (IOException ignored) {
+			} finally {
+				inputStream = null;
+			}
+		}
+	}
+
+	private void connect() throws IOException {
+		final long start = System.nanoTime();
+		final long[] range = segment.get();
+		URLConnection urlConnection = url.openConnection();
+		// end is exclusive, so the response ends exactly with the range and the connection
+		// can go back to the keep-alive pool
+		urlConnection.setRequestProperty("Range", range[1] == OPEN_END ?
+				"bytes=" + range[0] + "-" :
+				"bytes=" + range[0] + "-" + (range[1] - 1));
+		// a transparently decompressed body would not match the range
+		urlConnection.setRequestProperty("Accept-Encoding", "identity");
+		urlConnection.setConnectTimeout(Backoff.CONNECT_TIMEOUT);
+		urlConnection.setReadTimeout(Backoff.READ_TIMEOUT);
+		urlConnection.connect();
+		probe.connected(System.nanoTime() - start);
+		int code = HttpURLConnection.HTTP_PARTIAL;
+		if (urlConnection instanceof HttpURLConnection) {
+			final HttpURLConnection http = (HttpURLConnection) urlConnection;
+			code = http.getResponseCode();
+			if (code != HttpURLConnection.HTTP_PARTIAL &&
+					!(code == HttpURLConnection.HTTP_OK && range[0] == 0)) {
+				final String retryAfter = http.getHeaderField("Retry-After");
+				http.disconnect();
+				throw new StatusException(code, retryAfter);
+			}
+		}
+		inputStream = urlConnection.getInputStream();
+		responseRemaining = urlConnection.getContentLengthLong();
+		if (range[1] == OPEN_END && code == HttpURLConnection.HTTP_PARTIAL) {
+			final long total = Download.parseTotal(
+					urlConnection.getHeaderField("Content-Range"), -1);
+			if (total > 0) {
+				segment.setEnd(OPEN_END, total); // the server told the length on a retry
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		probe.responded(elapsed);
+		connectCost = elapsed / 1000000;
+	}
+
+	/**
+	 * Consume a small unread tail of the response, e.g. after a fork shrank the range, so the
+	 * connection stays reusable instead of being closed
+	 */
+	private void drain() throws IOException, InterruptedException {
+		if (responseRemaining <= 0 || responseRemaining > DRAIN_LIMIT) {
+			return;
+		}
+		final ByteBuffer buf = writer.obtain();
+		try {
+			final byte[] array = buf.array();
+			while (responseRemaining > 0) {
+				final int len = inputStream.read(array, buf.arrayOffset(),
+						(int) Math.min(responseRemaining, buf.capacity()));
+				if (len == -1) {
+					break;
+				}
+				responseRemaining -= len;
+			}
+		} finally {
+			writer.recycle(buf);
+		}
+	}
+
+	private void download() throws IOException, InterruptedException {
+		while (segment.getRemaining() > 0) {
+			if (isInterrupted()) {
+				throw new InterruptedException();
+			}
+			final ByteBuffer buf = writer.obtain();
+			boolean eof = false;
+			try {
+				eof = !fill(buf);
+			} finally {
+				buf.flip();
+				responseRemaining -= buf.limit();
+				// the range may have been forked while reading, only claimed bytes are ours
+				final long pos = segment.getPosition();
+				final int len = segment.claim(buf.limit());
+				buf.limit(len);
+				if (len > 0) {
+					try {
+						if (decoder != null) {
+							decoder.offer(buf);
+						} else {
+							writer.write(buf, pos);
+						}
+					} catch (IOException | InterruptedException e) {
+						segment.unclaim(len);
+						throw e;
+					}
+					received += len;
+					probe.received(len);
+				} else {
+					writer.recycle(buf);
+				}
+			}
+			if (eof) {
+				if (segment.getEnd() == OPEN_END && responseRemaining <= 0) {
+					// a stream of unknown length ended
+					segment.setEnd(OPEN_END, segment.getPosition());
+				} else if (segment.getRemaining() > 0) {
+					// cut short or a response shorter than the range, retried in place as a reset
+					throw new EOFException("unexpected end of stream");
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read from the stream directly into a leased buffer until it is full or the range is done
+	 *
+	 * @return false on end of stream
+	 */
+	private boolean fill(ByteBuffer buf) throws IOException, InterruptedException {
+		final byte[] array = buf.array();
+		final long remaining = getRemainingSize();
+		if (remaining < buf.remaining()) {
+			buf.limit((int) remaining);
+		}
+		while (buf.hasRemaining()) {
+			final long start = System.nanoTime();
+			int len = inputStream.read(array, buf.arrayOffset() + buf.position(),
+					engine.limiter.quantum(buf.remaining()));
+			if (len == -1) {
+				return false;
+			}
+			final long elapsed = System.nanoTime() - start;
+			probe.stalled(elapsed);
+			// reads served from the socket buffer take well under a millisecond
+			dataRate = len * 1e6 / Math.max(elapsed, 1000000);
+			healthy = true;
+			buf.position(buf.position() + len);
+			engine.limiter.acquire(len);
+		}
+		return true;
+	}
+}
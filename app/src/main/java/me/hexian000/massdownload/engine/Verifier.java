@@ -0,0 +1,510 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes the file in fixed-size pieces on its own thread while it downloads. The writer hands
+ * over each slab once persisted and the slab goes back to the pool after hashing, so the write
+ * loop never waits for a digest and a slow hash throttles getters through the pool like a slow
+ * disk. Bytes reaching a piece ahead of a gap are held until the gap fills; past a limit, or
+ * for pieces partly on disk from a resumed session, the piece is read back from the file once
+ * complete instead. Pieces failing the manifest are forgotten by the writer and refetched,
+ * only pieces that pass are reported to the listener.
+ */
+public class Verifier {
+	private static final int MAX_ATTEMPTS = 3;
+	private static final BufferBlock FINISH = new BufferBlock(null, -1);
+	private final Writer writer;
+	private final Algorithm algorithm;
+	private final int pieceSize;
+	private final long length;
+	private final List<byte[]> manifest;
+	private final RangeSet resumed;
+	private volatile long heldLimit;
+	private volatile Writer.Listener listener;
+	private final BlockingQueue<BufferBlock> queue;
+	private final Map<Integer, Piece> pieces; // verifier thread only
+	private final byte[][] digests;
+	private final int[] attempts;
+	private final List<long[]> refetch;
+	private final Thread thread;
+	private long held;
+	private int pending;
+	private int corruptCount;
+
+	/**
+	 * @param manifest expected digest of every piece in order or null to only compute them
+	 * @param resumed  ranges already in the file, read back for hashing
+	 * @param heldLimit bytes of out-of-order slabs that may wait for a gap to fill
+	 */
+	Verifier(@NonNull Writer writer, @NonNull Algorithm algorithm, int pieceSize, long length,
+	         @Nullable List<byte[]> manifest, @NonNull RangeSet resumed, long heldLimit) {
+		final long count = (length + pieceSize - 1) / pieceSize;
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("pieceSize too small");
+		}
+		if (manifest != null && manifest.size() != count) {
+			throw new IllegalArgumentException("manifest has " + manifest.size() +
+					" pieces, expected " + count);
+		}
+		this.writer = writer;
+		this.algorithm = algorithm;
+		this.pieceSize = pieceSize;
+		this.length = length;
+		this.manifest = manifest;
+		this.resumed = resumed;
+		this.heldLimit = heldLimit;
+		queue = new LinkedBlockingQueue<>();
+		pieces = new HashMap<>();
+		digests = new byte[(int) count][];
+		attempts = new int[(int) count];
+		refetch = new ArrayList<>();
+		thread = new Thread(this::run);
+		held = 0;
+		pending = 1; // the scan of resumed pieces
+		corruptCount = 0;
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * @param heldLimit bytes of out-of-order slabs that may wait, slabs already held stay
+	 */
+	void setHeldLimit(long heldLimit) {
+		this.heldLimit = heldLimit;
+	}
+
+	/**
+	 * @param listener told of each piece once it has passed, on the verifier thread
+	 */
+	void setListener(@Nullable Writer.Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Hand over a persisted slab, its remaining bytes start at offset
+	 */
+	void offer(@NonNull ByteBuffer data, long offset) {
+		synchronized (this) {
+			pending++;
+		}
+		queue.add(new BufferBlock(data, offset));
+	}
+
+	/**
+	 * Wait until everything offered so far has been hashed
+	 */
+	void drain() throws InterruptedException {
+		synchronized (this) {
+			while (pending > 0 && thread.isAlive()) {
+				wait(100);
+			}
+		}
+	}
+
+	/**
+	 * @return {start, end} ranges that failed verification and should be fetched again, the
+	 * writer has already forgotten them
+	 */
+	@NonNull
+	synchronized List<long[]> takeRefetch() {
+		List<long[]> ranges = new ArrayList<>(refetch);
+		refetch.clear();
+		return ranges;
+	}
+
+	/**
+	 * Hash what is left and stop, offered slabs have all been returned to the pool afterwards
+	 */
+	void close() throws InterruptedException {
+		queue.add(FINISH);
+		if (thread.getState() == Thread.State.NEW) {
+			discard();
+			return;
+		}
+		thread.join();
+	}
+
+	/**
+	 * @return pieces that failed verification, counting each attempt
+	 */
+	public synchronized int getCorruptCount() {
+		return corruptCount;
+	}
+
+	/**
+	 * Only the CRC-32 is that of the file itself. For SHA-256 this is the SHA-256 of the piece
+	 * digests in order, which does not match a SHA-256 of the file published elsewhere.
+	 *
+	 * @return digest over the whole file once every piece has been hashed, otherwise null
+	 * @see Algorithm
+	 */
+	@Nullable
+	public synchronized byte[] getFileDigest() {
+		for (byte[] digest : digests) {
+			if (digest == null) {
+				return null;
+			}
+		}
+		switch (algorithm) {
+		case CRC32: {
+			long crc = 0;
+			for (int i = 0; i < digests.length; i++) {
+				final long len = Math.min(pieceSize, length - (long) i * pieceSize);
+				crc = crc32Combine(crc, ByteBuffer.wrap(digests[i]).getInt() & 0xffffffffL, len);
+			}
+			return ByteBuffer.allocate(4).putInt((int) crc).array();
+		}
+		case SHA256: {
+			MessageDigest md = newMessageDigest();
+			for (byte[] digest : digests) {
+				md.update(digest);
+			}
+			return md.digest();
+		}
+		default:
+			throw new IllegalStateException("unknown algorithm");
+		}
+	}
+
+	private void run() {
+		final ByteBuffer buf = ByteBuffer.allocate(Writer.SLAB_SIZE);
+		try {
+			scanResumed(buf);
+			while (true) {
+				BufferBlock block = queue.take();
+				if (block == FINISH) {
+					break;
+				}
+				try {
+					hash(block.data, block.offset, buf);
+				} finally {
+					done();
+				}
+			}
+		} catch (InterruptedException e) {
+			Logger.e("verifier interrupted", e);
+		} finally {
+			discard();
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private void scanResumed(ByteBuffer buf) {
+		try {
+			for (long[] range : resumed.toList()) {
+				final int first = (int) (range[0] / pieceSize);
+				final int last = (int) ((range[1] - 1) / pieceSize);
+				for (int index = first; index <= last; index++) {
+					Piece piece = getPiece(index);
+					piece.covered.add(Math.max(range[0], piece.start),
+							Math.min(range[1], piece.end));
+					piece.readBack = true;
+					if (piece.isComplete()) {
+						complete(piece, buf);
+					}
+				}
+			}
+		} finally {
+			done();
+		}
+	}
+
+	private void hash(ByteBuffer data, long offset, ByteBuffer buf) {
+		final long end = offset + data.remaining();
+		while (offset < end) {
+			final Piece piece = getPiece((int) (offset / pieceSize));
+			int len = (int) (Math.min(end, piece.end) - offset);
+			piece.covered.add(offset, offset + len);
+			if (!piece.readBack && offset < piece.next) {
+				// already hashed, the writer trims duplicates only at the ends of a slab
+				final int skip = (int) Math.min(piece.next - offset, len);
+				data.position(data.position() + skip);
+				offset += skip;
+				len -= skip;
+			}
+			if (piece.readBack || len == 0) {
+				data.position(data.position() + len); // hashed from the file once complete
+			} else if (offset == piece.next) {
+				update(piece, data, len);
+				data.position(data.position() + len);
+				advance(piece);
+			} else if (len == data.remaining() && held + len <= heldLimit) {
+				// the rest of the slab lies within this piece, keep it until the gap fills
+				final ByteBuffer previous = piece.held.put(offset, data);
+				held += len;
+				if (previous != null) {
+					// a duplicate of a held slab, keep the longer one
+					final ByteBuffer dropped = previous.remaining() > len ? data : previous;
+					if (dropped == data) {
+						piece.held.put(offset, previous);
+					}
+					held -= dropped.remaining();
+					writer.recycle(dropped);
+				}
+				return;
+			} else {
+				giveUp(piece);
+				data.position(data.position() + len);
+			}
+			offset += len;
+			if (piece.isComplete()) {
+				complete(piece, buf);
+			}
+		}
+		writer.recycle(data);
+	}
+
+	/**
+	 * Hash held slabs that have become contiguous with the hashed part of the piece, skipping
+	 * where they overlap it
+	 */
+	private void advance(Piece piece) {
+		Map.Entry<Long, ByteBuffer> entry;
+		while ((entry = piece.held.firstEntry()) != null && entry.getKey() <= piece.next) {
+			piece.held.remove(entry.getKey());
+			final ByteBuffer next = entry.getValue();
+			held -= next.remaining();
+			final long skip = piece.next - entry.getKey();
+			if (skip < next.remaining()) {
+				next.position(next.position() + (int) skip);
+				update(piece, next, next.remaining());
+			}
+			writer.recycle(next);
+		}
+	}
+
+	private void giveUp(Piece piece) {
+		piece.readBack = true;
+		for (ByteBuffer data : piece.held.values()) {
+			held -= data.remaining();
+			writer.recycle(data);
+		}
+		piece.held.clear();
+	}
+
+	private void update(Piece piece, ByteBuffer data, int len) {
+		final int pos = data.position();
+		if (piece.crc != null) {
+			piece.crc.update(data.array(), data.arrayOffset() + pos, len);
+		} else {
+			piece.md.update(data.array(), data.arrayOffset() + pos, len);
+		}
+		piece.next += len;
+	}
+
+	private void complete(Piece piece, ByteBuffer buf) {
+		pieces.remove(piece.index);
+		if (piece.readBack) {
+			piece.reset(algorithm);
+			try {
+				long pos = piece.start;
+				while (pos < piece.end) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), piece.end - pos));
+					while (buf.hasRemaining()) {
+						final int n = writer.channel.read(buf, pos + buf.position());
+						if (n < 0) {
+							throw new IOException("unexpected end of file");
+						}
+					}
+					buf.flip();
+					update(piece, buf, buf.remaining());
+					pos += buf.limit();
+				}
+			} catch (IOException e) {
+				Logger.e("piece " + piece.index + " read back error", e);
+				return; // left unverified
+			}
+		}
+		final byte[] digest = piece.digest();
+		final byte[] expected = manifest == null ? null : manifest.get(piece.index);
+		if (expected == null || Arrays.equals(expected, digest)) {
+			synchronized (this) {
+				digests[piece.index] = digest;
+			}
+			final Writer.Listener listener = this.listener;
+			if (listener != null) {
+				listener.onPersisted(piece.start, piece.end - piece.start);
+			}
+			return;
+		}
+		Logger.w("piece " + piece.index + " corrupt, attempt " + (attempts[piece.index] + 1));
+		// forget before refetching so the writer accepts the range again
+		writer.forget(piece.start, piece.end);
+		synchronized (this) {
+			corruptCount++;
+			attempts[piece.index]++;
+			if (attempts[piece.index] < MAX_ATTEMPTS) {
+				refetch.add(new long[]{piece.start, piece.end});
+			}
+		}
+	}
+
+	@NonNull
+	private Piece getPiece(int index) {
+		Piece piece = pieces.get(index);
+		if (piece == null) {
+			final long start = (long) index * pieceSize;
+			piece = new Piece(index, start, Math.min(start + pieceSize, length));
+			piece.reset(algorithm);
+			pieces.put(index, piece);
+		}
+		return piece;
+	}
+
+	private synchronized void done() {
+		pending--;
+		if (pending == 0) {
+			notifyAll();
+		}
+	}
+
+	private void discard() {
+		for (Piece piece : pieces.values()) {
+			for (ByteBuffer data : piece.held.values()) {
+				writer.recycle(data);
+			}
+			piece.held.clear();
+		}
+		held = 0;
+		BufferBlock block;
+		while ((block = queue.poll()) != null) {
+			if (block.data != null) {
+				writer.recycle(block.data);
+			}
+		}
+	}
+
+	@NonNull
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+	/**
+	 * CRC-32 of two concatenated blocks from their CRC-32 values, as zlib crc32_combine()
+	 */
+	static long crc32Combine(long crc1, long crc2, long len2) {
+		if (len2 <= 0) {
+			return crc1;
+		}
+		final long[] even = new long[32];
+		final long[] odd = new long[32];
+		odd[0] = 0xedb88320L; // CRC-32 polynomial
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd); // operator for two zero bits
+		gf2MatrixSquare(odd, even); // operator for four zero bits
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((len2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			len2 >>= 1;
+			if (len2 == 0) {
+				break;
+			}
+			gf2MatrixSquare(odd, even);
+			if ((len2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			len2 >>= 1;
+		} while (len2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] mat, long vec) {
+		long sum = 0;
+		for (int i = 0; vec != 0; i++, vec >>>= 1) {
+			if ((vec & 1) != 0) {
+				sum ^= mat[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] mat) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = gf2MatrixTimes(mat, mat[n]);
+		}
+	}
+
+	private static class Piece {
+		final int index;
+		final long start;
+		final long end;
+		final TreeMap<Long, ByteBuffer> held;
+		final RangeSet covered; // bytes received, duplicates counted once
+		long next;
+		boolean readBack;
+		CRC32 crc;
+		MessageDigest md;
+
+		Piece(int index, long start, long end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			held = new TreeMap<>();
+			covered = new RangeSet();
+			next = start;
+			readBack = false;
+		}
+
+		void reset(Algorithm algorithm) {
+			next = start;
+			if (algorithm == Algorithm.CRC32) {
+				crc = new CRC32();
+			} else {
+				md = newMessageDigest();
+			}
+		}
+
+		boolean isComplete() {
+			return covered.size() >= end - start;
+		}
+
+		byte[] digest() {
+			if (crc != null) {
+				return ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+			}
+			return md.digest();
+		}
+	}
+
+	public enum Algorithm {
+		/**
+		 * CRC-32 of each piece, combined into the CRC-32 of the whole file
+		 */
+		CRC32,
+		/**
+		 * SHA-256 of each piece, the file digest is the SHA-256 of all piece digests in order
+		 */
+		SHA256
+	}
+}
@@ -0,0 +1,25 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Hands out more work to a getter that finished its range, so it can keep its connection
+ */
+interface WorkSource {
+	/**
+	 * @param thief the getter asking for work
+	 * @return a {start, end} range cut from another running segment or null when nothing is
+	 * worth splitting
+	 */
+	@Nullable
+	long[] steal(@NonNull Getter thief);
+
+	/**
+	 * Take back a range the getter will not download, taken from {@link #steal(Getter)} or
+	 * left by a getter that gave up
+	 *
+	 * @return false when no other getter could download it, the getter then keeps the range
+	 */
+	boolean giveBack(long start, long end);
+}
@@ -0,0 +1,163 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-back stage owned by one writer thread. Adjacent blocks, typically from the same getter
+ * range, are merged into extents and written with a single gathering write once an extent
+ * reaches the flush size, gets too old, or the cache exceeds its limit.
+ */
+class WriteBackCache {
+	private final Writer writer;
+	private final long flushSize;
+	private final long maxDirtyAge;
+	private long limit;
+	private final Map<Long, Extent> extents; // keyed by end offset
+	private long dirty; // slab memory pinned, partly filled slabs count in full
+
+	WriteBackCache(@NonNull Writer writer, long flushSize, long maxDirtyAge, long limit) {
+		this.writer = writer;
+		this.flushSize = flushSize;
+		this.maxDirtyAge = maxDirtyAge;
+		this.limit = limit;
+		extents = new HashMap<>();
+		dirty = 0;
+	}
+
+	/**
+	 * @param limit slab memory that may be pinned, a lower one is enforced by the next put
+	 */
+	void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	void put(@NonNull ByteBuffer data, long offset) throws IOException {
+		Extent extent = extents.remove(offset);
+		if (extent == null) {
+			extent = new Extent(offset);
+		}
+		extent.add(data);
+		dirty += data.capacity();
+		if (extent.length >= flushSize) {
+			flush(extent);
+		} else {
+			extents.put(extent.offset + extent.length, extent);
+		}
+		while (dirty > limit) {
+			Extent oldest = null;
+			for (Extent e : extents.values()) {
+				if (oldest == null || e.since < oldest.since) {
+					oldest = e;
+				}
+			}
+			if (oldest == null) {
+				break;
+			}
+			extents.remove(oldest.offset + oldest.length);
+			flush(oldest);
+		}
+	}
+
+	/**
+	 * @return milliseconds until the oldest extent expires
+	 */
+	long getDelay() {
+		long since = Long.MAX_VALUE;
+		for (Extent e : extents.values()) {
+			since = Math.min(since, e.since);
+		}
+		if (since == Long.MAX_VALUE) {
+			return maxDirtyAge;
+		}
+		return Math.max(since + maxDirtyAge - System.currentTimeMillis(), 0);
+	}
+
+	void flushExpired() throws IOException {
+		final long now = System.currentTimeMillis();
+		Iterator<Extent> it = extents.values().iterator();
+		while (it.hasNext()) {
+			Extent extent = it.next();
+			if (now - extent.since >= maxDirtyAge) {
+				it.remove();
+				flush(extent);
+			}
+		}
+	}
+
+	void flushAll() throws IOException {
+		Iterator<Extent> it = extents.values().iterator();
+		while (it.hasNext()) {
+			Extent extent = it.next();
+			it.remove();
+			flush(extent);
+		}
+	}
+
+	/**
+	 * Drop cached data without writing, used after a write error, the ranges are missing again
+	 */
+	void discard() {
+		for (Extent extent : extents.values()) {
+			writer.lost(extent.offset, extent.length);
+			for (ByteBuffer data : extent.slabs) {
+				writer.pool.release(data);
+			}
+		}
+		extents.clear();
+		dirty = 0;
+	}
+
+	private void flush(Extent extent) throws IOException {
+		dirty -= extent.pinned;
+		final int[] lengths = new int[extent.slabs.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = extent.slabs.get(i).remaining();
+		}
+		final long begin = System.nanoTime();
+		try {
+			writer.persist(extent.slabs.toArray(new ByteBuffer[0]), extent.offset, extent.length);
+		} catch (IOException e) {
+			writer.lost(extent.offset, extent.length);
+			for (ByteBuffer data : extent.slabs) {
+				writer.pool.release(data);
+			}
+			throw e;
+		}
+		long offset = extent.offset;
+		for (int i = 0; i < lengths.length; i++) {
+			writer.retire(extent.slabs.get(i), offset, lengths[i]);
+			offset += lengths[i];
+		}
+		writer.persisted(extent.offset, extent.length, begin);
+	}
+
+	private static class Extent {
+		final long offset;
+		final long since;
+		final List<ByteBuffer> slabs;
+		long length;
+		long pinned;
+
+		Extent(long offset) {
+			this.offset = offset;
+			since = System.currentTimeMillis();
+			slabs = new ArrayList<>();
+			length = 0;
+			pinned = 0;
+		}
+
+		void add(ByteBuffer data) {
+			slabs.add(data);
+			length += data.remaining();
+			pinned += data.capacity();
+		}
+	}
+}
@@ -1,83 +1,568 @@
 package me.hexian000.massdownload.engine;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static me.hexian000.massdownload.DownloadApp.LOG_TAG;
-
-public class Writer extends Thread {
-	private final BlockingQueue<BufferBlock> q;
-	private final Semaphore capacity;
-	private final RandomAccessFile file;
+public abstract class Writer {
+	static final int SLAB_SIZE = 64 * 1024; // 64 KiB
+	private static volatile Preallocator preallocator = null;
+	final BufferPool pool;
+	final RandomAccessFile file;
+	final FileChannel channel;
+	private final DownloadOptions options;
 	private final AtomicBoolean closed;
+	private final RangeSet written;
+	private final AtomicLong duplicated;
+	private volatile int bufferSize;
+	private volatile IOException failure; // the first write error, null while writing works
+	private volatile Listener listener;
+	private volatile Verifier verifier;
+	private volatile Metrics metrics;
 
-	Writer(int bufferSize, @NonNull File file, long length) throws IOException {
-		super();
-		q = new LinkedBlockingQueue<>();
-		capacity = new Semaphore(bufferSize);
+	Writer(@NonNull DownloadOptions options, @NonNull File file, long length) throws IOException {
+		this.options = options;
+		pool = options.getBufferPool() != null ? options.getBufferPool() :
+				new BufferPool(SLAB_SIZE, options.getBufferSize());
 		this.file = new RandomAccessFile(file, "rw");
-		this.file.setLength(length);
+		try {
+			allocate(options.getAllocation(), length);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+		channel = this.file.getChannel();
 		closed = new AtomicBoolean(false);
+		written = new RangeSet();
+		duplicated = new AtomicLong(0);
+		bufferSize = options.getBufferSize();
 	}
 
-	public void write(@NonNull byte[] data, long offset) throws InterruptedException {
-		BufferBlock block = new BufferBlock(data, offset);
-		if (closed.get()) {
-			throw new IllegalStateException("writer has been closed");
-		}
-		capacity.acquire(block.data.length);
-		q.put(block);
+	/**
+	 * Set by the host to reserve blocks natively, e.g. with posix_fallocate, without it
+	 * {@link Allocation#PREALLOCATE} falls back to a sparse file
+	 */
+	public static void setPreallocator(@Nullable Preallocator preallocator) {
+		Writer.preallocator = preallocator;
 	}
 
-	@Override
-	public void run() {
-		try {
-			while (!isInterrupted()) {
-				BufferBlock block = q.take();
-				if (block.data == null) {
-					break;
+	private void allocate(@NonNull Allocation allocation, long length) throws IOException {
+		if (length < 0) {
+			file.setLength(0); // unknown length, the stream is appended from the start
+			return;
+		}
+		switch (allocation) {
+		case PREALLOCATE:
+			final Preallocator preallocator = Writer.preallocator;
+			if (preallocator != null) {
+				try {
+					preallocator.allocate(file.getFD(), length);
+				} catch (IOException e) {
+					Logger.w("preallocation failed, file is sparse", e);
 				}
-				file.seek(block.offset);
-				file.write(block.data);
-				// Log.v(LOG_TAG, "written " + block.data.length + " bytes at offset=" + block.offset);
-				capacity.release(block.data.length);
 			}
+			file.setLength(length);
+			break;
+		case SPARSE:
+			file.setLength(length);
+			break;
+		case EXTEND:
+			if (file.length() > length) {
+				file.setLength(length);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unknown allocation");
+		}
+	}
+
+	/**
+	 * @param length -1 when unknown, the file then grows as the stream is written
+	 */
+	@NonNull
+	static Writer open(@NonNull DownloadOptions options, @NonNull File file, long length)
+			throws IOException {
+		if (length < 0 && options.getWriterMode() == Mode.MAPPED) {
+			return new ChannelWriter(options, file, length); // nothing to map yet
+		}
+		switch (options.getWriterMode()) {
+		case QUEUE:
+			return new QueueWriter(options, file, length);
+		case CHANNEL:
+			return new ChannelWriter(options, file, length);
+		case MAPPED:
+			return new MappedWriter(options, file, length);
+		default:
+			throw new IllegalArgumentException("unknown writer mode");
+		}
+	}
+
+	/**
+	 * Lease an empty buffer to be filled and passed to {@link #write(ByteBuffer, long)},
+	 * blocks while the write buffer is full
+	 */
+	@NonNull
+	public ByteBuffer obtain() throws InterruptedException {
+		final Metrics metrics = this.metrics;
+		if (metrics == null) {
+			return pool.acquire();
+		}
+		ByteBuffer buf = pool.tryAcquire();
+		if (buf != null) {
+			metrics.obtained(0);
+			return buf;
+		}
+		final long begin = System.nanoTime();
+		buf = pool.acquire();
+		metrics.obtained(System.nanoTime() - begin);
+		return buf;
+	}
+
+	/**
+	 * @return an empty buffer or null when the write buffer is full
+	 */
+	@Nullable
+	public ByteBuffer tryObtain() {
+		return pool.tryAcquire();
+	}
+
+	/**
+	 * Return a leased buffer without writing it
+	 */
+	public void recycle(@NonNull ByteBuffer data) {
+		pool.release(data);
+	}
+
+	/**
+	 * Bytes at offsets written before, e.g. by another getter racing the same range, are dropped.
+	 *
+	 * @param data   leased buffer ready to be read, owned by the writer after this call
+	 * @param offset file offset of the first byte
+	 */
+	public void write(@NonNull ByteBuffer data, long offset)
+			throws IOException, InterruptedException {
+		if (closed.get()) {
+			pool.release(data);
+			throw new IllegalStateException("writer has been closed");
+		}
+		final IOException failure = this.failure;
+		if (failure != null) {
+			pool.release(data);
+			throw new IOException("an earlier write failed", failure);
+		}
+		final long end = offset + data.remaining();
+		final long[] range = written.claim(offset, end);
+		if (range == null) {
+			duplicated.addAndGet(end - offset);
+			pool.release(data);
+			return;
+		}
+		if (range[0] > offset || range[1] < end) {
+			duplicated.addAndGet(range[0] - offset + end - range[1]);
+			data.position(data.position() + (int) (range[0] - offset));
+			data.limit(data.limit() - (int) (end - range[1]));
+		}
+		try {
+			submit(data, range[0]);
 		} catch (IOException e) {
-			Log.e(LOG_TAG, "file write error", e);
-		} catch (InterruptedException e) {
-			Log.e(LOG_TAG, "writer interrupted", e);
-		} finally {
+			fail(e);
+			lost(range[0], range[1] - range[0]);
+			throw e;
+		}
+	}
+
+	/**
+	 * Remember the first write error, every later write fails with it and the download with
+	 * them: a disk that refused one block, e.g. because it is full, refuses the next one too
+	 */
+	void fail(@NonNull IOException e) {
+		if (failure == null) {
+			failure = e;
+			Logger.e("file write error", e);
+		}
+	}
+
+	/**
+	 * @return true once a write has failed, ranges accepted but not stored are missing again
+	 */
+	public boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * A range was accepted but never stored, it counts as missing again
+	 */
+	void lost(long offset, long length) {
+		written.remove(offset, offset + length);
+	}
+
+	/**
+	 * Mark ranges already in the file, e.g. from a resumed download, as written
+	 */
+	void setWritten(@NonNull RangeSet ranges) {
+		for (long[] range : ranges.toList()) {
+			written.add(range[0], range[1]);
+		}
+	}
+
+	/**
+	 * Mark a range as not written so that it is accepted again, e.g. after it failed verification
+	 */
+	void forget(long start, long end) {
+		written.remove(start, end);
+	}
+
+	/**
+	 * @return true when every byte in the range has been accepted for writing
+	 */
+	public boolean isWritten(long start, long end) {
+		return written.contains(start, end);
+	}
+
+	/**
+	 * @return ranges within [0, length) not accepted for writing, as {start, end} pairs
+	 */
+	@NonNull
+	List<long[]> getMissing(long length) {
+		return written.missing(length);
+	}
+
+	/**
+	 * @return bytes accepted for writing so far
+	 */
+	public long getWrittenSize() {
+		return written.size();
+	}
+
+	/**
+	 * @return bytes dropped because their offsets had already been written
+	 */
+	public long getDuplicatedSize() {
+		return duplicated.get();
+	}
+
+	public void setListener(@Nullable Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Change the buffer budget of this download, a private pool shrinks with it and write-back
+	 * caches at their next block
+	 */
+	void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+		if (options.getBufferPool() == null) {
+			pool.setCapacity(bufferSize);
+		}
+	}
+
+	void setVerifier(@Nullable Verifier verifier) {
+		this.verifier = verifier;
+	}
+
+	void setMetrics(@Nullable Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return blocks waiting for writer threads
+	 */
+	int getQueueDepth() {
+		return 0;
+	}
+
+	/**
+	 * Called by the strategies with a slab whose last length bytes have been handed to the file,
+	 * the verifier hashes it on its own thread before it goes back to the pool
+	 */
+	void retire(@NonNull ByteBuffer data, long offset, int length) {
+		final Verifier verifier = this.verifier;
+		if (verifier == null) {
+			pool.release(data);
+			return;
+		}
+		data.position(data.limit() - length);
+		verifier.offer(data, offset);
+	}
+
+	/**
+	 * Called by the strategies once a range has been handed to the file
+	 *
+	 * @param begin nanoTime before the range was handed over
+	 */
+	void persisted(long offset, long length, long begin) {
+		final Metrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.persisted(length, System.nanoTime() - begin);
+		}
+		final Listener listener = this.listener;
+		if (listener != null) {
+			listener.onPersisted(offset, length);
+		}
+	}
+
+	/**
+	 * Force everything persisted so far to the storage device
+	 */
+	public void sync() throws IOException {
+		channel.force(false);
+	}
+
+	abstract void submit(@NonNull ByteBuffer data, long offset)
+			throws IOException, InterruptedException;
+
+	public abstract void start();
+
+	/**
+	 * Persist everything buffered so far, blocks until done
+	 */
+	void flush() throws InterruptedException {
+	}
+
+	/**
+	 * Stop accepting data, wait for pending writes and close the file
+	 */
+	public void close() throws InterruptedException {
+		if (closed.compareAndSet(false, true)) {
 			try {
-				file.close();
+				shutdown();
+				sync();
 			} catch (IOException e) {
-				Log.e(LOG_TAG, "file close error", e);
+				fail(e);
+			} finally {
+				try {
+					file.close();
+				} catch (IOException e) {
+					Logger.e("file close error", e);
+				}
+				Logger.d("file closed");
 			}
-			Log.d(LOG_TAG, "file closed");
 		}
 	}
 
-	public void close() throws InterruptedException {
-		if (closed.compareAndSet(false, true)) {
-			q.put(new BufferBlock(null, -1));
+	abstract void shutdown() throws InterruptedException;
+
+	/**
+	 * Positional write without touching the shared file pointer, safe to call concurrently
+	 */
+	void persist(@NonNull ByteBuffer data, long offset) throws IOException {
+		long pos = offset;
+		while (data.hasRemaining()) {
+			pos += channel.write(data, pos);
 		}
-		join();
 	}
 
-	private class BufferBlock {
-		long offset;
-		byte[] data;
+	/**
+	 * Gathering write of adjacent buffers starting at offset
+	 */
+	void persist(@NonNull ByteBuffer[] data, long offset, long length) throws IOException {
+		synchronized (channel) { // gathering writes go through the channel position
+			channel.position(offset);
+			long remaining = length;
+			while (remaining > 0) {
+				remaining -= channel.write(data);
+			}
+		}
+	}
+
+	/**
+	 * A thread draining its own queue into the file, optionally through a write-back cache
+	 */
+	class WriterThread extends Thread {
+		private static final long FLUSH = -2;
+		private static final long FINISH = -1;
+		private final BlockingQueue<BufferBlock> q = new LinkedBlockingQueue<>();
+		private final Semaphore flushed = new Semaphore(0);
+		private final WriteBackCache cache;
+		private final int count;
+
+		WriterThread(int count) {
+			this(count, options.getFlushSize() > 0);
+		}
+
+		/**
+		 * @param cached whether blocks go through a write-back cache
+		 */
+		WriterThread(int count, boolean cached) {
+			super();
+			this.count = count;
+			if (cached) {
+				cache = new WriteBackCache(Writer.this, options.getFlushSize(),
+						options.getMaxDirtyAge(), getCacheLimit());
+			} else {
+				cache = null;
+			}
+		}
+
+		/**
+		 * @return half of the buffer budget may be dirty, the rest is left to getters
+		 */
+		private long getCacheLimit() {
+			return bufferSize / 2 / count;
+		}
+
+		int getDepth() {
+			return q.size();
+		}
+
+		void put(@NonNull ByteBuffer data, long offset) throws IOException, InterruptedException {
+			q.put(new BufferBlock(data, offset));
+			final IOException failure = Writer.this.failure;
+			if (failure != null) {
+				// the thread may have drained its queue before this block arrived
+				discardQueue();
+				throw new IOException("an earlier write failed", failure);
+			}
+		}
+
+		/**
+		 * Drop queued blocks without storing them, after a write error
+		 */
+		private void discardQueue() {
+			BufferBlock block;
+			while ((block = q.poll()) != null) {
+				if (block.data != null) {
+					lost(block.offset, block.data.remaining());
+					pool.release(block.data);
+				}
+			}
+		}
+
+		/**
+		 * Flush everything queued and stop, the thread must be joined afterwards
+		 */
+		void finish() throws InterruptedException {
+			q.put(new BufferBlock(null, FINISH));
+		}
 
-		BufferBlock(byte[] data, long offset) {
-			this.data = data;
-			this.offset = offset;
+		/**
+		 * Write out everything queued or cached so far, returns at once if the thread has died
+		 */
+		void drain() throws InterruptedException {
+			q.put(new BufferBlock(null, FLUSH));
+			while (!flushed.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				if (!isAlive()) {
+					return;
+				}
+			}
 		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					BufferBlock block;
+					if (cache != null) {
+						block = q.poll(cache.getDelay(), TimeUnit.MILLISECONDS);
+						if (block == null) {
+							cache.flushExpired();
+							continue;
+						}
+					} else {
+						block = q.take();
+					}
+					if (block.data == null) {
+						if (cache != null) {
+							cache.flushAll();
+						}
+						if (block.offset == FLUSH) {
+							flushed.release();
+							continue;
+						}
+						break;
+					}
+					if (cache != null) {
+						cache.setLimit(getCacheLimit());
+						cache.put(block.data, block.offset);
+						cache.flushExpired();
+					} else {
+						final int length = block.data.remaining();
+						final long begin = System.nanoTime();
+						try {
+							persist(block.data, block.offset);
+						} catch (IOException e) {
+							lost(block.offset, length);
+							pool.release(block.data);
+							throw e;
+						}
+						retire(block.data, block.offset, length);
+						persisted(block.offset, length, begin);
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				Logger.e("writer interrupted", e);
+				fail(new InterruptedIOException("writer interrupted"));
+			} finally {
+				// unblock getters waiting on a full pool, nothing dropped counts as written
+				if (cache != null) {
+					cache.discard();
+				}
+				discardQueue();
+			}
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * Called on writer or getter threads after a range has been written to the file, or on
+		 * the verifier thread once its piece has passed. It may not have reached the storage
+		 * device before {@link Writer#sync()}
+		 */
+		void onPersisted(long offset, long length);
+	}
+
+	public interface Preallocator {
+		/**
+		 * Reserve blocks for the whole file without writing it, must fail rather than fill
+		 * the file with zeros when the filesystem cannot do that
+		 */
+		void allocate(@NonNull FileDescriptor fd, long length) throws IOException;
+	}
+
+	public enum Allocation {
+		/**
+		 * reserve all blocks up front through the {@link Preallocator}, so the file does not
+		 * fragment while getters fill it out of order
+		 */
+		PREALLOCATE,
+		/**
+		 * set the length at once and let the filesystem allocate blocks as they are written
+		 */
+		SPARSE,
+		/**
+		 * do nothing up front, the file grows as data beyond its end is written
+		 */
+		EXTEND
+	}
+
+	public enum Mode {
+		/**
+		 * single writer thread doing seek and write on RandomAccessFile
+		 */
+		QUEUE,
+		/**
+		 * positional FileChannel writes from writer threads or directly from getters
+		 */
+		CHANNEL,
+		/**
+		 * getters copy into memory-mapped windows of the file, no writer thread except with NIO
+		 */
+		MAPPED
 	}
 }
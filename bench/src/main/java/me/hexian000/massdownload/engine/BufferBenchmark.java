@@ -0,0 +1,120 @@
+package me.hexian000.massdownload.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffer path of a getter: leasing slabs from the pool against allocating them, and reading a
+ * response straight into a slab against reading into a scratch array and copying, as getters
+ * did before slabs. Run with -prof gc to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+public class BufferBenchmark {
+	private static final int RESPONSE_SIZE = 1024 * 1024; // 1 MiB
+	private static final int READ_SIZE = 8192; // typical socket read
+	private BufferPool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		pool = new BufferPool(Writer.SLAB_SIZE, 16 * 1024 * 1024);
+	}
+
+	@Benchmark
+	public ByteBuffer pooled() throws InterruptedException {
+		final ByteBuffer buf = pool.acquire();
+		buf.put(0, (byte) 1);
+		pool.release(buf);
+		return buf;
+	}
+
+	@Benchmark
+	public ByteBuffer allocated() {
+		final ByteBuffer buf = ByteBuffer.allocate(Writer.SLAB_SIZE);
+		buf.put(0, (byte) 1);
+		return buf;
+	}
+
+	@Benchmark
+	public long readIntoSlab(Response response) throws IOException, InterruptedException {
+		final InputStream in = response.open();
+		long total = 0;
+		while (true) {
+			final ByteBuffer buf = pool.acquire();
+			while (buf.hasRemaining()) {
+				final int n = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+						Math.min(buf.remaining(), READ_SIZE));
+				if (n < 0) {
+					break;
+				}
+				buf.position(buf.position() + n);
+			}
+			total += buf.position();
+			final boolean eof = buf.hasRemaining();
+			pool.release(buf);
+			if (eof) {
+				return total;
+			}
+		}
+	}
+
+	@Benchmark
+	public long readAndCopy(Response response) throws IOException, InterruptedException {
+		final InputStream in = response.open();
+		final byte[] scratch = new byte[READ_SIZE];
+		long total = 0;
+		while (true) {
+			final ByteBuffer buf = pool.acquire();
+			while (buf.hasRemaining()) {
+				final int n = in.read(scratch, 0, Math.min(buf.remaining(), READ_SIZE));
+				if (n < 0) {
+					break;
+				}
+				buf.put(scratch, 0, n);
+			}
+			total += buf.position();
+			final boolean eof = buf.hasRemaining();
+			pool.release(buf);
+			if (eof) {
+				return total;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Response {
+		private byte[] body;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			body = new byte[RESPONSE_SIZE];
+			new Random(0).nextBytes(body);
+		}
+
+		InputStream open() {
+			return new ByteArrayInputStream(body);
+		}
+	}
+}
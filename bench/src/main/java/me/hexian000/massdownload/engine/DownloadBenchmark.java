@@ -0,0 +1,103 @@
+package me.hexian000.massdownload.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole downloads from the loopback server with injected latency and bandwidth limits. The
+ * per-connection rate sits well below the link rate, so the time reflects how quickly the
+ * schedulers reach enough connections as well as the engine overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+	private static final long LENGTH = 32 * 1024 * 1024; // 32 MiB
+
+	@Param({"THREAD", "NIO"})
+	public Engine.Type engine;
+
+	@Param({"ADAPTIVE", "SIMPLE"})
+	public SegmentScheduler.Type scheduler;
+
+	/**
+	 * milliseconds before each response
+	 */
+	@Param({"0", "50"})
+	public long latency;
+
+	/**
+	 * bytes per second of one connection
+	 */
+	@Param({"4194304"})
+	public double connectionRate;
+
+	/**
+	 * bytes per second of the whole link
+	 */
+	@Param({"33554432"})
+	public double linkRate;
+
+	private LoopbackServer server;
+	private File dir;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new LoopbackServer(LENGTH, latency, connectionRate, linkRate);
+		dir = Files.createTempDirectory("download").toFile();
+	}
+
+	@TearDown(Level.Iteration)
+	public void clean() {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		server.close();
+		if (!dir.delete()) {
+			dir.deleteOnExit();
+		}
+	}
+
+	@Benchmark
+	public long download() throws IOException, InterruptedException {
+		final DownloadOptions options = new DownloadOptions()
+				.setEngineType(engine)
+				.setSchedulerType(scheduler)
+				.setJournalInterval(0);
+		final Download download = new Download(server.getUrl(), dir, options);
+		download.start();
+		download.join();
+		if (download.isFailed()) {
+			throw new IOException("download failed");
+		}
+		return download.getLength();
+	}
+}
@@ -0,0 +1,335 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs the fork schedulers against simulated links in virtual time, so their decisions can be
+ * compared in seconds instead of hours. A link has a capacity shared fairly by all connections,
+ * a cap per connection, a share of slow connections and a connect cost, and may lose capacity
+ * when too many connections are open. Finished getters take work as in {@link Download}.
+ */
+public class ForkSimulation {
+	private static final long TICK = 50; // milliseconds
+	private static final long MINIMAL_FORK = 2 * 1024 * 1024; // 2 MiB, as in Download
+	private static final int ALIGN = 64 * 1024; // 64 KiB
+	private static final long LENGTH = 256 * 1024 * 1024; // 256 MiB
+	private static final long TIMEOUT = 3600 * 1000; // 1 hour
+	private final Link link;
+	private final SegmentScheduler scheduler;
+	private final int limit;
+	private final Random random;
+	private final List<SimGetter> getters;
+	private final List<Integer> trace; // alive getters at each schedule
+	private long now;
+	private int peak;
+	private int forks;
+
+	private ForkSimulation(Link link, SegmentScheduler scheduler, int limit) {
+		this.link = link;
+		this.scheduler = scheduler;
+		this.limit = limit;
+		random = new Random(1);
+		getters = new ArrayList<>();
+		now = 0;
+		peak = 0;
+		forks = 0;
+		trace = new ArrayList<>();
+	}
+
+	public static void main(String[] args) {
+		final Link[] links = {
+				new Link("lan", 12500, 0, 0, 5, 0),
+				new Link("throttled", 12500, 1250, 0, 100, 0),
+				new Link("mobile", 2500, 1000, 0.2, 300, 0),
+				new Link("congested", 5000, 2000, 0, 150, 4),
+				new Link("overloaded", 5000, 1250, 0, 150, 6),
+		};
+		System.out.println("link        scheduler  seconds  peak  forks");
+		for (Link link : links) {
+			for (SegmentScheduler.Type type : SegmentScheduler.Type.values()) {
+				final SegmentScheduler scheduler = type == SegmentScheduler.Type.SIMPLE ?
+						new SimpleScheduler(MINIMAL_FORK) : new AdaptiveScheduler(MINIMAL_FORK);
+				final ForkSimulation sim = new ForkSimulation(link, scheduler, 16);
+				final long time = sim.run();
+				System.out.println(String.format(Locale.ROOT, "%-11s %-10s %7.1f %5d %6d",
+						link.name, type, time / 1000.0, sim.peak, sim.forks));
+			}
+		}
+		// past the knee a probe loses throughput, finished getters must retire down to the target
+		final ForkSimulation sim = new ForkSimulation(links[links.length - 1],
+				new AdaptiveScheduler(MINIMAL_FORK), 16);
+		sim.run();
+		System.out.println();
+		System.out.println("adaptive on " + sim.link.name + ", alive getters when they change:");
+		StringBuilder line = new StringBuilder();
+		int last = 0;
+		for (int i = 0; i < sim.trace.size(); i++) {
+			final int alive = sim.trace.get(i);
+			if (alive != last) {
+				final long second = (i + 1) * sim.scheduler.getInterval() / 1000;
+				line.append(String.format(Locale.ROOT, " %ds:%d", second, alive));
+				last = alive;
+			}
+		}
+		System.out.println(line.toString().trim());
+	}
+
+	private long run() {
+		getters.add(new SimGetter(0, LENGTH, now + link.connectCost));
+		long nextSchedule = scheduler.getInterval();
+		while (now < TIMEOUT) {
+			now += TICK;
+			transfer();
+			int alive = 0;
+			for (SimGetter getter : new ArrayList<>(getters)) {
+				if (getter.isAlive() && getter.getRemainingSize() == 0 && !steal(getter)) {
+					getter.interrupt();
+				}
+				if (getter.isAlive()) {
+					alive++;
+				}
+			}
+			if (alive == 0) {
+				return now;
+			}
+			peak = Math.max(peak, alive);
+			if (now >= nextSchedule) {
+				nextSchedule += scheduler.getInterval();
+				trace.add(alive);
+				List<Getter> snapshot = new ArrayList<>(getters);
+				for (Getter getter : scheduler.schedule(snapshot, now, limit)) {
+					getters.add((SimGetter) getter);
+					forks++;
+				}
+			}
+		}
+		return TIMEOUT;
+	}
+
+	/**
+	 * Share the link among connected getters by max-min fairness under their own caps
+	 */
+	private void transfer() {
+		List<SimGetter> active = new ArrayList<>();
+		for (SimGetter getter : getters) {
+			getter.rate = 0;
+			if (getter.isAlive() && now >= getter.readyAt && getter.getRemainingSize() > 0) {
+				active.add(getter);
+			}
+		}
+		double capacity = link.capacity;
+		if (link.knee > 0 && active.size() > link.knee) {
+			// every connection over the knee costs a tenth of the capacity
+			capacity *= Math.max(1 - 0.1 * (active.size() - link.knee), 0.1);
+		}
+		List<SimGetter> open = new ArrayList<>(active);
+		while (!open.isEmpty() && capacity > 1e-9) {
+			final double share = capacity / open.size();
+			List<SimGetter> next = new ArrayList<>();
+			for (SimGetter getter : open) {
+				final double room = getter.cap - getter.rate;
+				final double add = Math.min(room, share);
+				getter.rate += add;
+				capacity -= add;
+				if (getter.cap - getter.rate > 1e-9) {
+					next.add(getter);
+				}
+			}
+			if (next.size() == open.size()) {
+				break;
+			}
+			open = next;
+		}
+		for (SimGetter getter : active) {
+			getter.advance((long) (getter.rate * TICK));
+		}
+	}
+
+	/**
+	 * Give a finished getter half of the segment expected to finish last
+	 */
+	private boolean steal(SimGetter thief) {
+		int alive = 0;
+		SimGetter victim = null;
+		double maxTime = 0;
+		for (SimGetter getter : getters) {
+			if (!getter.isAlive()) {
+				continue;
+			}
+			alive++;
+			final long remain = getter.getRemainingSize();
+			if (getter == thief || remain <= MINIMAL_FORK) {
+				continue;
+			}
+			final double rate = getter.getDataRate();
+			final double time = rate > 0 ? remain / rate : Double.MAX_VALUE;
+			if (time > maxTime) {
+				maxTime = time;
+				victim = getter;
+			}
+		}
+		if (alive > scheduler.getTarget(limit) || victim == null) {
+			return false;
+		}
+		final long[] range = victim.cut();
+		if (range == null) {
+			return false;
+		}
+		thief.reuse(range[0], range[1], now + link.connectCost / 2); // keep-alive, one round trip
+		return true;
+	}
+
+	private double nextCap() {
+		final double cap = link.connectionCap > 0 ? link.connectionCap : link.capacity;
+		return random.nextDouble() < link.slowShare ? cap / 10 : cap;
+	}
+
+	private static class Link {
+		final String name;
+		final double capacity; // bytes per millisecond
+		final double connectionCap; // bytes per millisecond, 0 for the link capacity
+		final double slowShare;
+		final long connectCost; // milliseconds
+		final int knee; // connections before capacity drops, 0 for never
+
+		Link(String name, double capacity, double connectionCap, double slowShare,
+		     long connectCost, int knee) {
+			this.name = name;
+			this.capacity = capacity;
+			this.connectionCap = connectionCap;
+			this.slowShare = slowShare;
+			this.connectCost = connectCost;
+			this.knee = knee;
+		}
+	}
+
+	private class SimGetter implements Getter {
+		final double cap;
+		long readyAt;
+		long position;
+		long end;
+		long received;
+		double rate;
+		boolean alive;
+
+		SimGetter(long start, long end, long readyAt) {
+			cap = nextCap();
+			this.readyAt = readyAt;
+			position = start;
+			this.end = end;
+			received = 0;
+			rate = 0;
+			alive = true;
+		}
+
+		void advance(long bytes) {
+			final long n = Math.min(bytes, end - position);
+			position += n;
+			received += n;
+		}
+
+		void reuse(long start, long end, long readyAt) {
+			position = start;
+			this.end = end;
+			this.readyAt = readyAt;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public boolean isAlive() {
+			return alive;
+		}
+
+		@Override
+		public void interrupt() {
+			alive = false;
+		}
+
+		@Override
+		public void join() {
+		}
+
+		@Override
+		public long getConnectCost() {
+			return now >= readyAt ? link.connectCost : -1;
+		}
+
+		@Override
+		public double getDataRate() {
+			return rate;
+		}
+
+		@Override
+		public long getReceivedSize() {
+			return received;
+		}
+
+		@Override
+		public long getRemainingSize() {
+			return Math.max(end - position, 0);
+		}
+
+		@Override
+		public long getPosition() {
+			return position;
+		}
+
+		@Override
+		public long getEndPosition() {
+			return end;
+		}
+
+		@Override
+		public boolean isHealthy() {
+			return alive && now >= readyAt && rate > 0;
+		}
+
+		@Override
+		public boolean isFailed() {
+			return false;
+		}
+
+		@Nullable
+		@Override
+		public Getter fork() {
+			final long[] range = cut();
+			if (range == null) {
+				return null;
+			}
+			return new SimGetter(range[0], range[1], now + link.connectCost);
+		}
+
+		@Nullable
+		@Override
+		public long[] cut() {
+			return cut(ALIGN);
+		}
+
+		@Nullable
+		@Override
+		public long[] cut(int align) {
+			long pos = (end - position) / 2 + position;
+			pos -= pos % align;
+			if (pos <= position + align || pos > end || !alive) {
+				return null;
+			}
+			final long[] range = new long[]{pos, end};
+			end = pos;
+			return range;
+		}
+
+		@Override
+		public void truncate() {
+			end = position;
+			alive = false;
+		}
+	}
+}
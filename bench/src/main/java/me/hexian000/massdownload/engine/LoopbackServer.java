@@ -0,0 +1,176 @@
+package me.hexian000.massdownload.engine;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 server on the loopback interface serving one generated file with byte ranges and
+ * keep-alive. Every response waits for the injected latency before its headers, and the body is
+ * paced by a per-connection rate and a rate of the whole link shared by all connections.
+ */
+class LoopbackServer implements Closeable {
+	private static final int CHUNK = 16 * 1024; // 16 KiB
+	private final long length;
+	private final long latency;
+	private final double connectionRate;
+	private final double linkRate;
+	private final ServerSocket server;
+	private final ExecutorService executor;
+	private long linkFree; // nanoTime when the link has sent everything reserved
+
+	/**
+	 * @param latency        milliseconds before each response
+	 * @param connectionRate bytes per second of one connection, 0 for unlimited
+	 * @param linkRate       bytes per second of all connections together, 0 for unlimited
+	 */
+	LoopbackServer(long length, long latency, double connectionRate, double linkRate)
+			throws IOException {
+		this.length = length;
+		this.latency = latency;
+		this.connectionRate = connectionRate;
+		this.linkRate = linkRate;
+		server = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		});
+		linkFree = System.nanoTime();
+		executor.execute(this::accept);
+	}
+
+	static byte at(long offset) {
+		return (byte) (offset * 31 + (offset >>> 9));
+	}
+
+	@NonNull
+	URL getUrl() throws IOException {
+		return new URL("http", "127.0.0.1", server.getLocalPort(), "/file.bin");
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				executor.execute(() -> serve(socket));
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream out = s.getOutputStream();
+			boolean keepAlive = true;
+			while (keepAlive) {
+				final String request = in.readLine();
+				if (request == null || request.isEmpty()) {
+					return;
+				}
+				String range = null;
+				String line;
+				while ((line = in.readLine()) != null && !line.isEmpty()) {
+					final int colon = line.indexOf(':');
+					if (colon < 0) {
+						continue;
+					}
+					final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+					final String value = line.substring(colon + 1).trim();
+					if ("range".equals(name)) {
+						range = value;
+					} else if ("connection".equals(name)) {
+						keepAlive = !"close".equalsIgnoreCase(value);
+					}
+				}
+				Thread.sleep(latency);
+				respond(out, request.startsWith("HEAD "), range, keepAlive);
+			}
+		} catch (IOException | InterruptedException ignored) {
+		}
+	}
+
+	private void respond(OutputStream out, boolean head, String range, boolean keepAlive)
+			throws IOException, InterruptedException {
+		long start = 0;
+		long end = length - 1;
+		StringBuilder header = new StringBuilder();
+		if (range != null && range.startsWith("bytes=")) {
+			final String[] bounds = range.substring(6).split("-", 2);
+			start = Long.parseLong(bounds[0]);
+			if (!bounds[1].isEmpty()) {
+				end = Math.min(Long.parseLong(bounds[1]), length - 1);
+			}
+			header.append("HTTP/1.1 206 Partial Content\r\n")
+			      .append("Content-Range: bytes ").append(start).append('-').append(end)
+			      .append('/').append(length).append("\r\n");
+		} else {
+			header.append("HTTP/1.1 200 OK\r\n");
+		}
+		header.append("Content-Length: ").append(end - start + 1).append("\r\n")
+		      .append("Accept-Ranges: bytes\r\n")
+		      .append("ETag: \"").append(length).append("\"\r\n")
+		      .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n")
+		      .append("\r\n");
+		out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (head) {
+			out.flush();
+			return;
+		}
+		final byte[] chunk = new byte[CHUNK];
+		final long begin = System.nanoTime();
+		long sent = 0;
+		for (long pos = start; pos <= end; ) {
+			final int n = (int) Math.min(chunk.length, end - pos + 1);
+			for (int i = 0; i < n; i++) {
+				chunk[i] = at(pos + i);
+			}
+			long due = linkRate > 0 ? reserveLink(n) : begin;
+			sent += n;
+			if (connectionRate > 0) {
+				due = Math.max(due, begin + (long) (sent * 1e9 / connectionRate));
+			}
+			final long wait = due - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			out.write(chunk, 0, n);
+			pos += n;
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return nanoTime when n more bytes may have left the shared link
+	 */
+	private synchronized long reserveLink(int n) {
+		linkFree = Math.max(linkFree, System.nanoTime()) + (long) (n * 1e9 / linkRate);
+		return linkFree;
+	}
+}
@@ -0,0 +1,175 @@
+package me.hexian000.massdownload.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers {@link Segment} the way a download does: owner threads claim bytes, sometimes give a
+ * claim back as after a failed write, and take more work from a pool or by cutting another
+ * segment, while splitter threads cut and truncate random segments as the scheduler and the
+ * endgame do. Every claimed range is recorded and the records of a round must tile the file
+ * exactly, a gap is a lost byte and an overlap a duplicated one. A round runs until every byte
+ * was written once, a lost byte never is and hangs it. Exits with 1 on any mismatch.
+ */
+public class SegmentStress {
+	private static final long LENGTH = 512 * 1024 * 1024; // 512 MiB
+	private static final int ALIGN = 512;
+	private static final int MAX_CLAIM = 4 * 1024; // 4 KiB
+	private static final int ROUNDS = 10;
+	private final Segment[] segments;
+	private final Queue<long[]> pool;
+	private final AtomicLong unwritten;
+	private final AtomicLong cuts;
+	private final AtomicLong truncates;
+	private final AtomicLong unclaims;
+
+	private SegmentStress(int owners) {
+		segments = new Segment[owners];
+		segments[0] = new Segment(0, LENGTH);
+		for (int i = 1; i < owners; i++) {
+			segments[i] = new Segment(0, 0);
+		}
+		pool = new ConcurrentLinkedQueue<>();
+		unwritten = new AtomicLong(LENGTH);
+		cuts = new AtomicLong(0);
+		truncates = new AtomicLong(0);
+		unclaims = new AtomicLong(0);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		final int owners = Math.max(cpus, 4);
+		final int splitters = Math.max(cpus / 2, 2);
+		System.out.println("round  claims     cuts  truncates  unclaims  result");
+		boolean ok = true;
+		for (int round = 1; round <= ROUNDS; round++) {
+			final SegmentStress stress = new SegmentStress(owners);
+			final List<long[]> claims = stress.run(splitters);
+			final String result = check(claims);
+			ok &= result == null;
+			System.out.println(String.format(Locale.ROOT, "%5d %7d %8d %10d %9d  %s", round,
+					claims.size(), stress.cuts.get(), stress.truncates.get(),
+					stress.unclaims.get(), result == null ? "ok" : result));
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return null when the claims tile the file, otherwise the first mismatch
+	 */
+	private static String check(List<long[]> claims) {
+		claims.sort(Comparator.comparingLong(claim -> claim[0]));
+		long expected = 0;
+		for (long[] claim : claims) {
+			if (claim[0] < expected) {
+				return "duplicated at " + claim[0];
+			}
+			if (claim[0] > expected) {
+				return "lost at " + expected;
+			}
+			expected = claim[1];
+		}
+		return expected == LENGTH ? null : "lost at " + expected;
+	}
+
+	private List<long[]> run(int splitterCount) throws InterruptedException {
+		final List<List<long[]>> records = new ArrayList<>();
+		final List<Thread> owners = new ArrayList<>();
+		for (Segment segment : segments) {
+			final List<long[]> record = new ArrayList<>();
+			records.add(record);
+			owners.add(new Thread(() -> own(segment, record)));
+		}
+		final List<Thread> splitters = new ArrayList<>();
+		for (int i = 0; i < splitterCount; i++) {
+			splitters.add(new Thread(this::split));
+		}
+		for (Thread thread : owners) {
+			thread.start();
+		}
+		for (Thread thread : splitters) {
+			thread.start();
+		}
+		for (Thread thread : splitters) {
+			thread.join();
+		}
+		for (Thread thread : owners) {
+			thread.join();
+		}
+		final List<long[]> claims = new ArrayList<>();
+		for (List<long[]> record : records) {
+			claims.addAll(record);
+		}
+		return claims;
+	}
+
+	/**
+	 * A getter: claims at its position and moves on to pooled or stolen ranges when done
+	 */
+	private void own(Segment segment, List<long[]> record) {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final byte[] buffer = new byte[MAX_CLAIM];
+		while (unwritten.get() > 0) {
+			final long pos = segment.getPosition();
+			final int n = segment.claim(random.nextInt(1, MAX_CLAIM + 1));
+			if (n > 0) {
+				Arrays.fill(buffer, 0, n, (byte) pos); // stands for the write
+				if (random.nextInt(64) == 0) {
+					segment.unclaim(n); // the write failed, the bytes stay in the range
+					unclaims.incrementAndGet();
+				} else {
+					record.add(new long[]{pos, pos + n});
+					unwritten.addAndGet(-n);
+				}
+				continue;
+			}
+			long[] range = pool.poll();
+			if (range == null) {
+				range = segments[random.nextInt(segments.length)].cut(ALIGN);
+				if (range != null) {
+					cuts.incrementAndGet();
+				}
+			}
+			if (range != null) {
+				segment.reset(range[0], range[1]);
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * The scheduler and the endgame: split or stop random segments and pool what they give up
+	 */
+	private void split() {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (unwritten.get() > 0) {
+			final Segment segment = segments[random.nextInt(segments.length)];
+			final long[] range;
+			if (random.nextInt(8) == 0) {
+				range = segment.truncate();
+				if (range != null) {
+					truncates.incrementAndGet();
+				}
+			} else {
+				range = segment.cut(ALIGN);
+				if (range != null) {
+					cuts.incrementAndGet();
+				}
+			}
+			if (range != null) {
+				pool.add(range);
+			}
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package me.hexian000.massdownload.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer throughput by strategy, block size and number of concurrent producers. Each operation
+ * opens a writer, fills the whole file from the producers, each sequentially over its own slice
+ * like a getter over its range, and closes it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriterBenchmark {
+	private static final long LENGTH = 64 * 1024 * 1024; // 64 MiB
+
+	@Param({"QUEUE", "CHANNEL", "MAPPED"})
+	public Writer.Mode mode;
+
+	@Param({"4096", "65536"})
+	public int blockSize;
+
+	@Param({"1", "4", "16"})
+	public int producers;
+
+	/**
+	 * writer threads in CHANNEL mode, 0 writes on the producer threads
+	 */
+	@Param({"2"})
+	public int writerThreads;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = File.createTempFile("writer", ".bin");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	@Benchmark
+	public long write() throws Exception {
+		final DownloadOptions options = new DownloadOptions()
+				.setWriterMode(mode)
+				.setWriterThreads(writerThreads);
+		final Writer writer = Writer.open(options, file, LENGTH);
+		writer.start();
+		final Thread[] threads = new Thread[producers];
+		final long slice = LENGTH / producers;
+		for (int i = 0; i < producers; i++) {
+			final long start = slice * i;
+			final long end = i == producers - 1 ? LENGTH : start + slice;
+			threads[i] = new Thread(() -> produce(writer, start, end));
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		writer.close();
+		return writer.getWrittenSize();
+	}
+
+	private void produce(Writer writer, long start, long end) {
+		try {
+			for (long pos = start; pos < end; pos += blockSize) {
+				final ByteBuffer data = writer.obtain();
+				data.position((int) Math.min(blockSize, end - pos));
+				data.flip();
+				writer.write(data, pos);
+			}
+		} catch (IOException | InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}